@@ -0,0 +1,50 @@
+package org.bgi.flexlab.bamqc;
+
+import org.bgi.flexlab.bamqc.util.CoverageBitmap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Seeded synthetic reads and sites shared by the benchmarks, so every run measures the same input.
+ */
+class BenchmarkData {
+    final static long SEED = 42;
+
+    /**
+     * Sorted alignment starts of reads placed uniformly over [1, length] at the given mean depth.
+     */
+    static int[] read_starts(int length, int depth, int readLength, Random random) {
+        int n = (int) ((long) length * depth / readLength);
+        int[] starts = new int[n];
+        for (int i = 0; i < n; i++) starts[i] = 1 + random.nextInt(length - readLength + 1);
+        Arrays.sort(starts);
+        return starts;
+    }
+
+    /**
+     * Sorted distinct sites over [1, length], one per spacing bases on average.
+     */
+    static int[] sites(int length, int spacing, Random random) {
+        int[] sites = new int[length / spacing + 1];
+        int n = 0;
+        int pos = 0;
+        while (true) {
+            pos += 1 + random.nextInt(2 * spacing - 1);
+            if (pos > length) break;
+            if (n == sites.length) sites = Arrays.copyOf(sites, n * 2);
+            sites[n++] = pos;
+        }
+        return Arrays.copyOf(sites, n);
+    }
+
+    /**
+     * Coverage bitmap of the reads, position p at bit p as in the single pass.
+     */
+    static CoverageBitmap coverage(int length, int[] starts, int readLength) {
+        CoverageBitmap coverage = new CoverageBitmap((long) length + 1, false);
+        coverage.reset((long) length + 1);
+        for (int s : starts) coverage.setRange(s, s + readLength - 1);
+        return coverage;
+    }
+}
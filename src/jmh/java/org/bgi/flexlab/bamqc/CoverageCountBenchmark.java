@@ -0,0 +1,51 @@
+package org.bgi.flexlab.bamqc;
+
+import org.bgi.flexlab.bamqc.util.CoverageBitmap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole-contig coverage counts of the report on a chrY sized bitmap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CoverageCountBenchmark {
+    final static int CONTIG_LENGTH = 57227415;
+    final static int READ_LENGTH = 150;
+
+    @Param({"1", "4", "30"})
+    int depth;
+
+    private CoverageBitmap coverage;
+    private BamStats stats;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(BenchmarkData.SEED);
+        int[] starts = BenchmarkData.read_starts(CONTIG_LENGTH, depth, READ_LENGTH, random);
+        coverage = BenchmarkData.coverage(CONTIG_LENGTH, starts, READ_LENGTH);
+        stats = new BamStats(null, null, false);
+    }
+
+    @Benchmark
+    public long countCoverage() {
+        stats.count_coverage(coverage);
+        return stats.n_sites_covered;
+    }
+
+    @Benchmark
+    public double countCoverageChrY() {
+        return stats.count_coverage_chrY(coverage);
+    }
+
+    @Benchmark
+    public double countCoverageChrYHuman() {
+        return stats.count_coverage_chrY_humam(coverage);
+    }
+}
@@ -0,0 +1,86 @@
+package org.bgi.flexlab.bamqc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The single pass over one contig of a sorted synthetic BAM, through {@link BamStats#run()},
+ * with the coverage bitmap or the streaming sweep and a site index of one site every 300 bases.
+ * The BAM and the index are written once per trial into a temporary directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CoverageLoopBenchmark {
+    final static int CONTIG_LENGTH = 1000000;
+
+    @Param({"1", "4", "30"})
+    int depth;
+
+    @Param({"100", "150"})
+    int readLength;
+
+    @Param({"false", "true"})
+    boolean streaming;
+
+    private File dir;
+    private String bam;
+    private ReferencePanelSite panel;
+    private PrintStream err;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("bamqc-bench").toFile();
+        SyntheticBam data = new SyntheticBam();
+        data.genomeSize = CONTIG_LENGTH;
+        data.contigs = 1;
+        data.depth = depth;
+        data.readLength = readLength;
+        // a few percent duplicates, as in a typical library
+        data.duplicateFraction = 0.03;
+        data.unmappedFraction = 0;
+        data.siteSpacing = 300;
+        data.seed = BenchmarkData.SEED;
+        data.write(dir);
+        bam = new File(dir, SyntheticBam.BAM).getPath();
+
+        // the panel is read as the index command writes it and decoded once, as in batch mode
+        String index = new File(dir, "sites.bqsi").getPath();
+        SiteIndex.write(new ReferencePanelSite(new File(dir, SyntheticBam.SITES).getPath()), index);
+        panel = new ReferencePanelSite(index);
+        panel.preload();
+
+        // the contig progress lines are not part of the measurement
+        err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.setErr(err);
+        Files.walk(dir.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Benchmark
+    public long countReads() {
+        BamStats stats = new BamStats(bam, panel, false);
+        stats.setStreaming(streaming);
+        stats.run();
+        return stats.n_known_sites_covered + stats.contigs.get(0).sitesCovered + stats.contigs.get(0).basesMapped;
+    }
+}
@@ -0,0 +1,191 @@
+package org.bgi.flexlab.bamqc;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs the whole QC over a grid of synthetic data sets and thread counts and records the wall
+ * time, the throughput and the peak RSS of every run, so changes to the counting can be measured
+ * offline at any scale. Every knob of {@link SyntheticBam} takes a comma separated list; data
+ * sets are written once into the work directory and reused by later runs.
+ *
+ * Each run is a fresh JVM, so the peak RSS is that of a single sample including the JVM, read
+ * from VmHWM of /proc when the child exits. Without /proc it is reported as -1.
+ */
+public class EndToEndBenchmark {
+    final static String HEADER = "genome_size\tcontigs\tdepth\tread_length\tduplicate_fraction\tunmapped_fraction"
+            + "\tsite_spacing\tthreads\trun\twall_ms\treads_per_s\tbam_mb_per_s\tpeak_rss_kb\texit";
+
+    /**
+     * Runs Main in the child JVM and writes the peak RSS to the file given first when the JVM exits.
+     */
+    public static class Child {
+        public static void main(String[] args) throws Exception {
+            final File rss = new File(args[0]);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try (PrintWriter out = new PrintWriter(new FileWriter(rss))) {
+                    out.println(peak_rss_kb());
+                } catch (IOException e) {
+                    System.err.println("[WARN] failed to write " + rss + ": " + e.getMessage());
+                }
+            }));
+            Main.main(Arrays.copyOfRange(args, 1, args.length));
+        }
+
+        private static long peak_rss_kb() {
+            File status = new File("/proc/self/status");
+            if (!status.exists()) return -1;
+            try {
+                for (String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+                    if (line.startsWith("VmHWM:")) return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            } catch (IOException e) {
+                return -1;
+            }
+            return -1;
+        }
+    }
+
+    private static String[] list(CommandLine cmdLine, String option, String fallback) {
+        return cmdLine.getOptionValue(option, fallback).split(",");
+    }
+
+    /**
+     * The data set of the knobs, written into the work directory unless it is there already.
+     */
+    private static Properties data_set(SyntheticBam data, File work) throws IOException {
+        File dir = new File(work, data.name());
+        File properties = new File(dir, SyntheticBam.PROPERTIES);
+        if (!properties.exists()) {
+            System.err.println("Writing data set " + data.name() + " ...");
+            return data.write(dir);
+        }
+        Properties counts = new Properties();
+        try (InputStream in = new FileInputStream(properties)) {
+            counts.load(in);
+        }
+        return counts;
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.apache.commons.cli.Options options = new org.apache.commons.cli.Options();
+        options.addOption(Option.builder("w").longOpt("work").required(true).hasArg().argName("DIR")
+                .desc("directory holding the data sets and the reports [request]").build());
+        options.addOption(Option.builder("o").longOpt("output").hasArg().argName("FILE")
+                .desc("append the results to this TSV file besides standard output").build());
+        options.addOption(Option.builder("t").longOpt("threads").hasArg().argName("INT,...")
+                .desc("worker threads of the QC [1]").build());
+        options.addOption(Option.builder().longOpt("repeat").hasArg().argName("INT")
+                .desc("runs of every point of the grid [1]").build());
+        options.addOption(Option.builder().longOpt("jvmArgs").hasArg().argName("ARGS")
+                .desc("options of the child JVM, space separated, e.g. --jvmArgs=\"-Xmx4g\"").build());
+        options.addOption(Option.builder().longOpt("qcArgs").hasArg().argName("ARGS")
+                .desc("further options of the QC, space separated, e.g. --qcArgs=\"--streaming --depth\"").build());
+        SyntheticBam.addOptions(options);
+        CommandLine cmdLine;
+        try {
+            cmdLine = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("[ERROR] " + e.getMessage());
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.setWidth(2 * HelpFormatter.DEFAULT_WIDTH);
+            formatter.printHelp("java -cp benchmarks.jar " + EndToEndBenchmark.class.getName(),
+                    "\nEvery knob of the data takes a comma separated list.\n\n", options, "", true);
+            System.exit(1);
+            return;
+        }
+
+        File work = new File(cmdLine.getOptionValue("work"));
+        int repeat = Integer.parseInt(cmdLine.getOptionValue("repeat", "1"));
+        String jvm_args = cmdLine.getOptionValue("jvmArgs", "").trim();
+        String qc_args = cmdLine.getOptionValue("qcArgs", "").trim();
+        PrintWriter results = null;
+        if (cmdLine.hasOption("output")) {
+            File output = new File(cmdLine.getOptionValue("output"));
+            boolean fresh = !output.exists();
+            results = new PrintWriter(new FileWriter(output, true), true);
+            if (fresh) results.println(HEADER);
+        }
+        System.out.println(HEADER);
+
+        for (String genome_size : list(cmdLine, "genomeSize", "10M"))
+        for (String contigs : list(cmdLine, "contigs", "4"))
+        for (String depth : list(cmdLine, "depth", "1"))
+        for (String read_length : list(cmdLine, "readLength", "150"))
+        for (String duplicates : list(cmdLine, "duplicateFraction", "0.05"))
+        for (String unmapped : list(cmdLine, "unmappedFraction", "0.02"))
+        for (String spacing : list(cmdLine, "siteSpacing", "300")) {
+            SyntheticBam data = new SyntheticBam();
+            data.genomeSize = SyntheticBam.parseCount(genome_size);
+            data.contigs = Integer.parseInt(contigs.trim());
+            data.depth = Double.parseDouble(depth.trim());
+            data.readLength = Integer.parseInt(read_length.trim());
+            data.duplicateFraction = Double.parseDouble(duplicates.trim());
+            data.unmappedFraction = Double.parseDouble(unmapped.trim());
+            data.siteSpacing = Integer.parseInt(spacing.trim());
+            data.seed = Long.parseLong(cmdLine.getOptionValue("seed", "42"));
+            Properties counts = data_set(data, work);
+            File dir = new File(work, data.name());
+
+            for (String threads : list(cmdLine, "threads", "1")) {
+                for (int run = 1; run <= repeat; run++) {
+                    String line = run_qc(dir, threads.trim(), jvm_args, qc_args, counts);
+                    line = data.genomeSize + "\t" + data.contigs + "\t" + data.depth + "\t" + data.readLength + "\t"
+                            + data.duplicateFraction + "\t" + data.unmappedFraction + "\t" + data.siteSpacing + "\t"
+                            + threads.trim() + "\t" + run + "\t" + line;
+                    System.out.println(line);
+                    if (results != null) results.println(line);
+                }
+            }
+        }
+        if (results != null) results.close();
+    }
+
+    /**
+     * Run the QC of a data set in a child JVM.
+     *
+     * @return the wall time, throughput, peak RSS and exit code columns
+     */
+    private static String run_qc(File dir, String threads, String jvm_args, String qc_args, Properties counts)
+            throws IOException, InterruptedException {
+        File rss = new File(dir, "rss." + threads + ".txt");
+        rss.delete();
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        if (!jvm_args.isEmpty()) command.addAll(Arrays.asList(jvm_args.split("\\s+")));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Child.class.getName());
+        command.add(rss.getPath());
+        command.addAll(Arrays.asList("-i", new File(dir, SyntheticBam.BAM).getPath(),
+                "-s", new File(dir, SyntheticBam.SITES).getPath(),
+                "-o", new File(dir, "report." + threads + ".txt").getPath(),
+                "-t", threads));
+        if (!qc_args.isEmpty()) command.addAll(Arrays.asList(qc_args.split("\\s+")));
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectOutput(new File(dir, "run." + threads + ".log"));
+        builder.redirectErrorStream(true);
+        long start = System.nanoTime();
+        int exit = builder.start().waitFor();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long peak_rss = -1;
+        if (rss.exists()) peak_rss = Long.parseLong(new String(Files.readAllBytes(rss.toPath()), StandardCharsets.UTF_8).trim());
+        long reads = Long.parseLong(counts.getProperty("reads"));
+        long bam_bytes = Long.parseLong(counts.getProperty("bamBytes"));
+        return Math.round(seconds * 1000) + "\t" + Math.round(reads / seconds) + "\t"
+                + String.format("%.1f", bam_bytes / 1e6 / seconds) + "\t" + peak_rss + "\t" + exit;
+    }
+}
@@ -0,0 +1,36 @@
+package org.bgi.flexlab.bamqc;
+
+import org.bgi.flexlab.bamqc.util.StatsUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The number formatting of the report rows, run once per row and per bin of the bin profile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportFormatBenchmark {
+    private long numerator = 1234567891L;
+    private long denominator = 3099734149L;
+    private double value = 0.3982838;
+
+    @Benchmark
+    public String divide() {
+        return StatsUtils.divide(numerator, denominator);
+    }
+
+    @Benchmark
+    public String percent() {
+        return StatsUtils.percent(numerator, denominator);
+    }
+
+    @Benchmark
+    public String realFormat() {
+        return StatsUtils.realFormat(value, 4);
+    }
+}
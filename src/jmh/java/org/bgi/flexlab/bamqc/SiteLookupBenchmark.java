@@ -0,0 +1,73 @@
+package org.bgi.flexlab.bamqc;
+
+import org.bgi.flexlab.bamqc.util.CoverageBitmap;
+import org.bgi.flexlab.bamqc.util.CoverageSweep;
+import org.bgi.flexlab.bamqc.util.SiteCursor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting the covered panel sites of a contig, by lookups in the coverage bitmap and by the
+ * forward cursor of the streaming mode, at site spacings from dense to sparse panels.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SiteLookupBenchmark {
+    final static int CONTIG_LENGTH = 10000000;
+    final static int READ_LENGTH = 150;
+
+    @Param({"1", "4"})
+    int depth;
+
+    @Param({"100", "300", "1000"})
+    int siteSpacing;
+
+    private int[] sites;
+    private CoverageBitmap coverage;
+    // merged intervals as handed to the sink of the sweep
+    private long[] intervalStart;
+    private long[] intervalEnd;
+    private int intervals;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(BenchmarkData.SEED);
+        int[] starts = BenchmarkData.read_starts(CONTIG_LENGTH, depth, READ_LENGTH, random);
+        sites = BenchmarkData.sites(CONTIG_LENGTH, siteSpacing, random);
+        coverage = BenchmarkData.coverage(CONTIG_LENGTH, starts, READ_LENGTH);
+
+        intervalStart = new long[1024];
+        intervalEnd = new long[1024];
+        CoverageSweep sweep = new CoverageSweep();
+        sweep.reset((s, e) -> {
+            if (intervals == intervalStart.length) {
+                intervalStart = Arrays.copyOf(intervalStart, intervals * 2);
+                intervalEnd = Arrays.copyOf(intervalEnd, intervals * 2);
+            }
+            intervalStart[intervals] = s;
+            intervalEnd[intervals++] = e;
+        });
+        for (int s : starts) sweep.add(s, s + READ_LENGTH - 1);
+        sweep.flush();
+    }
+
+    @Benchmark
+    public long bitmapLookup() {
+        return ReferencePanelSite.count_covered(sites, 0, Integer.MAX_VALUE, coverage, 0);
+    }
+
+    @Benchmark
+    public long streamingCursor() {
+        SiteCursor cursor = new SiteCursor(SiteCursor.of(sites, 0, Integer.MAX_VALUE));
+        for (int i = 0; i < intervals; i++) cursor.cover(intervalStart[i], intervalEnd[i]);
+        cursor.finish();
+        return cursor.covered();
+    }
+}
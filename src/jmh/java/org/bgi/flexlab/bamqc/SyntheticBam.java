@@ -0,0 +1,230 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.*;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFHeader;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.ParseException;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Writes a seeded, coordinate sorted and indexed BAM together with a matching site VCF list, so
+ * the whole QC can be measured offline at any depth, genome size and panel density.
+ *
+ * Reads are single ended and placed as a Poisson process along equal sized contigs, so they
+ * stream out sorted without being held in memory. A duplicate is a flagged copy of the read
+ * before it, the unmapped reads come last without a position. Sites are placed the same way,
+ * one VCF per contig. The directory gets sample.bam, sample.bai, sites.list and data.properties
+ * with the counts written.
+ */
+public class SyntheticBam {
+    final static String BAM = "sample.bam";
+    final static String SITES = "sites.list";
+    final static String PROPERTIES = "data.properties";
+    private final static byte[] ACGT = {'A', 'C', 'G', 'T'};
+
+    long genomeSize = 10000000;
+    int contigs = 4;
+    double depth = 1;
+    int readLength = 150;
+    double duplicateFraction = 0.05;
+    double unmappedFraction = 0.02;
+    int siteSpacing = 300;
+    long seed = 42;
+
+    /**
+     * Name of the data set, the same knobs giving the same name and the same files.
+     */
+    String name() {
+        return "g" + genomeSize + "_c" + contigs + "_d" + depth + "_l" + readLength + "_dup" + duplicateFraction
+                + "_un" + unmappedFraction + "_s" + siteSpacing + "_seed" + seed;
+    }
+
+    /**
+     * Write the data set into dir and return the counts written.
+     */
+    Properties write(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        Random random = new Random(seed);
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        int contig_length = (int) Math.min(Integer.MAX_VALUE - 1, genomeSize / contigs);
+        for (int c = 1; c <= contigs; c++) header.addSequence(new SAMSequenceRecord("chr" + c, contig_length));
+        SAMReadGroupRecord rg = new SAMReadGroupRecord("rg1");
+        rg.setLibrary("lib1");
+        rg.setSample("synthetic");
+        header.addReadGroup(rg);
+
+        long reads = 0;
+        long duplicates = 0;
+        long unmapped = 0;
+        long sites = 0;
+        byte[] bases = new byte[readLength];
+        byte[] quals = new byte[readLength];
+        Arrays.fill(quals, (byte) 30);
+        String cigar = readLength + "M";
+        // mean distance between read starts, duplicates excluded
+        double gap = readLength / depth;
+
+        File bam = new File(dir, BAM);
+        SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam);
+        for (SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+            double pos = 0;
+            SAMRecord previous = null;
+            while (true) {
+                pos += -gap * Math.log(1 - random.nextDouble());
+                if (pos + readLength > seq.getSequenceLength()) break;
+                SAMRecord read;
+                if (previous != null && random.nextDouble() < duplicateFraction) {
+                    read = previous.deepCopy();
+                    read.setReadName("r" + reads);
+                    read.setDuplicateReadFlag(true);
+                    duplicates++;
+                } else {
+                    for (int i = 0; i < readLength; i++) bases[i] = ACGT[random.nextInt(4)];
+                    read = new SAMRecord(header);
+                    read.setReadName("r" + reads);
+                    read.setReferenceIndex(seq.getSequenceIndex());
+                    read.setAlignmentStart(1 + (int) pos);
+                    read.setCigarString(cigar);
+                    read.setMappingQuality(random.nextInt(61));
+                    read.setReadNegativeStrandFlag(random.nextBoolean());
+                    read.setReadBases(bases.clone());
+                    read.setBaseQualities(quals);
+                    read.setAttribute(SAMTag.RG.name(), "rg1");
+                    previous = read;
+                }
+                writer.addAlignment(read);
+                reads++;
+            }
+        }
+        long n_unmapped = Math.round(reads * unmappedFraction / (1 - unmappedFraction));
+        for (long k = 0; k < n_unmapped; k++) {
+            for (int i = 0; i < readLength; i++) bases[i] = ACGT[random.nextInt(4)];
+            SAMRecord read = new SAMRecord(header);
+            read.setReadName("u" + k);
+            read.setReadUnmappedFlag(true);
+            read.setReadBases(bases.clone());
+            read.setBaseQualities(quals);
+            read.setAttribute(SAMTag.RG.name(), "rg1");
+            writer.addAlignment(read);
+            unmapped++;
+        }
+        writer.close();
+        File bai = new File(dir, BAM.replace(".bam", ".bai"));
+        if (!bai.exists()) throw new IOException("no index written for " + bam);
+
+        File site_dir = new File(dir, "sites");
+        if (!site_dir.isDirectory() && !site_dir.mkdirs()) throw new IOException("cannot create " + site_dir);
+        try (PrintWriter list = new PrintWriter(new FileWriter(new File(dir, SITES)))) {
+            for (SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+                File vcf = new File(site_dir, seq.getSequenceName() + ".vcf");
+                sites += write_sites(vcf, seq, header.getSequenceDictionary(), random);
+                list.println(seq.getSequenceName() + "\t" + vcf.getAbsolutePath());
+            }
+        }
+
+        Properties counts = new Properties();
+        counts.setProperty("reads", Long.toString(reads + unmapped));
+        counts.setProperty("duplicates", Long.toString(duplicates));
+        counts.setProperty("unmapped", Long.toString(unmapped));
+        counts.setProperty("sites", Long.toString(sites));
+        counts.setProperty("bamBytes", Long.toString(bam.length()));
+        try (OutputStream out = new FileOutputStream(new File(dir, PROPERTIES))) {
+            counts.store(out, name());
+        }
+        return counts;
+    }
+
+    private long write_sites(File vcf, SAMSequenceRecord seq, SAMSequenceDictionary dict, Random random) {
+        VariantContextWriter writer = new VariantContextWriterBuilder().setOutputFile(vcf)
+                .setReferenceDictionary(dict).unsetOption(htsjdk.variant.variantcontext.writer.Options.INDEX_ON_THE_FLY).build();
+        VCFHeader header = new VCFHeader();
+        header.setSequenceDictionary(dict);
+        writer.writeHeader(header);
+        long n = 0;
+        double pos = 0;
+        while (true) {
+            pos += -siteSpacing * Math.log(1 - random.nextDouble());
+            if (pos >= seq.getSequenceLength()) break;
+            int start = 1 + (int) pos;
+            int ref = random.nextInt(4);
+            int alt = (ref + 1 + random.nextInt(3)) % 4;
+            writer.add(new VariantContextBuilder("synthetic", seq.getSequenceName(), start, start,
+                    Arrays.asList(Allele.create(ACGT[ref], true), Allele.create(ACGT[alt], false))).make());
+            n++;
+        }
+        writer.close();
+        return n;
+    }
+
+    /**
+     * A count with an optional decimal K, M or G suffix.
+     */
+    static long parseCount(String count) {
+        String s = count.trim().toUpperCase();
+        long unit = 1;
+        if (s.endsWith("K")) unit = 1000L;
+        else if (s.endsWith("M")) unit = 1000000L;
+        else if (s.endsWith("G")) unit = 1000000000L;
+        if (unit != 1) s = s.substring(0, s.length() - 1);
+        return (long) (Double.parseDouble(s) * unit);
+    }
+
+    static void addOptions(org.apache.commons.cli.Options options) {
+        options.addOption(Option.builder().longOpt("genomeSize").hasArg().argName("SIZE")
+                .desc("bases of the genome, e.g. 100M, split into equal contigs [10M]").build());
+        options.addOption(Option.builder().longOpt("contigs").hasArg().argName("INT")
+                .desc("number of contigs [4]").build());
+        options.addOption(Option.builder().longOpt("depth").hasArg().argName("FLOAT")
+                .desc("mean depth of the distinct reads [1]").build());
+        options.addOption(Option.builder().longOpt("readLength").hasArg().argName("INT")
+                .desc("read length [150]").build());
+        options.addOption(Option.builder().longOpt("duplicateFraction").hasArg().argName("FLOAT")
+                .desc("chance that a placed read is a flagged copy of the one before [0.05]").build());
+        options.addOption(Option.builder().longOpt("unmappedFraction").hasArg().argName("FLOAT")
+                .desc("fraction of all reads that are unmapped [0.02]").build());
+        options.addOption(Option.builder().longOpt("siteSpacing").hasArg().argName("INT")
+                .desc("mean distance between panel sites [300]").build());
+        options.addOption(Option.builder().longOpt("seed").hasArg().argName("LONG")
+                .desc("random seed [42]").build());
+    }
+
+    public static void main(String[] args) throws IOException {
+        org.apache.commons.cli.Options options = new org.apache.commons.cli.Options();
+        options.addOption(Option.builder("o").longOpt("output").required(true).hasArg().argName("DIR")
+                .desc("directory to write the data set to [request]").build());
+        addOptions(options);
+        CommandLine cmdLine;
+        try {
+            cmdLine = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            new HelpFormatter().printHelp("java -cp benchmarks.jar " + SyntheticBam.class.getName(), options, true);
+            System.exit(1);
+            return;
+        }
+        SyntheticBam data = new SyntheticBam();
+        if (cmdLine.hasOption("genomeSize")) data.genomeSize = parseCount(cmdLine.getOptionValue("genomeSize"));
+        if (cmdLine.hasOption("contigs")) data.contigs = Integer.parseInt(cmdLine.getOptionValue("contigs"));
+        if (cmdLine.hasOption("depth")) data.depth = Double.parseDouble(cmdLine.getOptionValue("depth"));
+        if (cmdLine.hasOption("readLength")) data.readLength = Integer.parseInt(cmdLine.getOptionValue("readLength"));
+        if (cmdLine.hasOption("duplicateFraction"))
+            data.duplicateFraction = Double.parseDouble(cmdLine.getOptionValue("duplicateFraction"));
+        if (cmdLine.hasOption("unmappedFraction"))
+            data.unmappedFraction = Double.parseDouble(cmdLine.getOptionValue("unmappedFraction"));
+        if (cmdLine.hasOption("siteSpacing")) data.siteSpacing = Integer.parseInt(cmdLine.getOptionValue("siteSpacing"));
+        if (cmdLine.hasOption("seed")) data.seed = Long.parseLong(cmdLine.getOptionValue("seed"));
+        Properties counts = data.write(new File(cmdLine.getOptionValue("output")));
+        System.out.println(data.name() + "\t" + counts);
+    }
+}
@@ -0,0 +1,193 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileSource;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMTag;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The few alignment fields the QC needs, filled in place for every record so the counting
+ * loop allocates nothing per read. The CIGAR is kept packed as in BAM, length << 4 | op.
+ */
+public class BamRecord {
+    final static int CIGAR_M = 0;
+    final static int CIGAR_D = 2;
+    final static int CIGAR_N = 3;
+    final static int CIGAR_S = 4;
+    final static int CIGAR_H = 5;
+    final static int CIGAR_EQ = 7;
+    final static int CIGAR_X = 8;
+
+    /**
+     * Fills the next record, false at the end of the input.
+     */
+    public interface Source {
+        boolean next(BamRecord record) throws IOException;
+    }
+
+    int referenceIndex;
+    int alignmentStart;
+    int alignmentEnd;
+    int flags;
+    int mappingQuality;
+    int readLength;
+    int mateReferenceIndex;
+    int mateAlignmentStart;
+    // index in ReadGroups, -1 when read groups are not followed
+    int readGroup = -1;
+    int[] cigar = new int[16];
+    int cigarLength;
+    // BGZF virtual offset of the record, -1 when unknown
+    long filePointer = -1;
+
+    /**
+     * Feeds a SAMRecord iterator, for the readers that go through htsjdk.
+     */
+    public static Source of(final Iterator<SAMRecord> it) {
+        return record -> {
+            if (!it.hasNext()) return false;
+            record.set(it.next());
+            return true;
+        };
+    }
+
+    /**
+     * Feeds a SAMRecord iterator resolving the read group of every record, none when null.
+     */
+    public static Source of(final Iterator<SAMRecord> it, final ReadGroups readGroups) {
+        if (readGroups == null) return of(it);
+        return record -> {
+            if (!it.hasNext()) return false;
+            SAMRecord read = it.next();
+            record.set(read);
+            record.readGroup = readGroups.resolve((String) read.getAttribute(SAMTag.RG.name()));
+            return true;
+        };
+    }
+
+    void set(SAMRecord read) {
+        SAMFileSource source = read.getFileSource();
+        filePointer = source != null && source.getFilePointer() instanceof BAMFileSpan
+                ? ((BAMFileSpan) source.getFilePointer()).getFirstOffset() : -1;
+        referenceIndex = read.getReferenceIndex();
+        alignmentStart = read.getAlignmentStart();
+        flags = read.getFlags();
+        mappingQuality = read.getMappingQuality();
+        readLength = read.getReadLength();
+        mateReferenceIndex = read.getMateReferenceIndex();
+        mateAlignmentStart = read.getMateAlignmentStart();
+        List<CigarElement> elements = read.getCigar().getCigarElements();
+        ensureCigar(elements.size());
+        cigarLength = elements.size();
+        for (int i = 0; i < cigarLength; i++) {
+            CigarElement e = elements.get(i);
+            cigar[i] = e.getLength() << 4 | CigarOperator.enumToBinary(e.getOperator());
+        }
+        alignmentEnd = computeAlignmentEnd();
+    }
+
+    void ensureCigar(int n) {
+        if (cigar.length < n) cigar = new int[Math.max(n, cigar.length * 2)];
+    }
+
+    /**
+     * Last reference base covered, alignmentStart - 1 when the CIGAR consumes none.
+     */
+    int computeAlignmentEnd() {
+        if (getReadUnmappedFlag()) return 0;
+        int end = alignmentStart - 1;
+        for (int i = 0; i < cigarLength; i++) {
+            if (consumesReference(cigar[i] & 0xf)) end += cigar[i] >>> 4;
+        }
+        return end;
+    }
+
+    static boolean consumesReference(int op) {
+        return op == CIGAR_M || op == CIGAR_D || op == CIGAR_N || op == CIGAR_EQ || op == CIGAR_X;
+    }
+
+    static boolean isClipped(int op) {
+        return op == CIGAR_S || op == CIGAR_H;
+    }
+
+    static boolean isAligned(int op) {
+        return op == CIGAR_M || op == CIGAR_EQ || op == CIGAR_X;
+    }
+
+    public int getReferenceIndex() {
+        return referenceIndex;
+    }
+
+    public int getAlignmentStart() {
+        return alignmentStart;
+    }
+
+    public int getAlignmentEnd() {
+        return alignmentEnd;
+    }
+
+    public int getReadLength() {
+        return readLength;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getMappingQuality() {
+        return mappingQuality;
+    }
+
+    public int getMateReferenceIndex() {
+        return mateReferenceIndex;
+    }
+
+    public int getMateAlignmentStart() {
+        return mateAlignmentStart;
+    }
+
+    public boolean getReadPairedFlag() {
+        return (flags & 0x1) != 0;
+    }
+
+    public boolean getMateUnmappedFlag() {
+        return (flags & 0x8) != 0;
+    }
+
+    public boolean getReadNegativeStrandFlag() {
+        return (flags & 0x10) != 0;
+    }
+
+    public boolean getMateNegativeStrandFlag() {
+        return (flags & 0x20) != 0;
+    }
+
+    public boolean getReadUnmappedFlag() {
+        return (flags & 0x4) != 0;
+    }
+
+    public boolean isSecondaryOrSupplementary() {
+        return (flags & 0x900) != 0;
+    }
+
+    public boolean getDuplicateReadFlag() {
+        return (flags & 0x400) != 0;
+    }
+
+    void setDuplicateReadFlag() {
+        flags |= 0x400;
+    }
+
+    /**
+     * Mapped to a contig, the counterpart of SAMRecord.getContig() != null.
+     */
+    public boolean isPlaced() {
+        return referenceIndex >= 0 && !getReadUnmappedFlag();
+    }
+}
@@ -1,27 +1,94 @@
 package org.bgi.flexlab.bamqc;
 
 import htsjdk.samtools.*;
+import org.bgi.flexlab.bamqc.util.CoverageBitmap;
+import org.bgi.flexlab.bamqc.util.CoverageRuns;
+import org.bgi.flexlab.bamqc.util.CoverageSweep;
+import org.bgi.flexlab.bamqc.util.DepthProfile;
 import org.bgi.flexlab.bamqc.util.Pair;
+import org.bgi.flexlab.bamqc.util.SiteCursor;
 import org.bgi.flexlab.bamqc.util.StatsUtils;
+import org.bgi.flexlab.bamqc.util.TeeInputStream;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BamStats {
     final private static String REPORT_HEADER = "## BGI-lowpass bam quality control, version ";
+    final private static String SINGLE_PASS = "single pass";
+    final private static String SHARDED = "sharded";
+    // records read by a quick estimate, from windows spread over the indexed contigs
+    final private static int QUICK_SAMPLE = 10000;
+    final private static int QUICK_WINDOWS = 100;
 
     private String bamFile;
     private ReferencePanelSite referencePanelSite;
 
     private boolean countSecondaryReads;
+    private boolean offHeapCoverage = false;
+    private int threads = 1;
+    private int shardSize = 10000000;
+    private boolean streaming = false;
+    private int decompressThreads = 0;
+    private boolean asyncIo = false;
+    private boolean skipDeletions = false;
+    private boolean findDuplicates = false;
+    private String tee = null;
+    private boolean depth = false;
+    private int binSize = 100000;
+    private String depthHistogram = null;
+    private String binProfile = null;
+    private String readGroupStats = null;
+    private ReadGroups read_groups = null;
+    private ReadGroupStats group_stats = null;
+    private PanelSet panels = null;
+    private int[] mapqTiers = null;
+    private MapqTiers tiers = null;
+    private String saveCoverage = null;
+    private String topUp = null;
+    // the covered bases of every contig are kept as runs to be saved or topped up
+    private boolean keep_runs = false;
+    private CoverageState top_up = null;
+    private String checkpoint = null;
+    private boolean resume = false;
+    private int checkpointInterval = 60;
+    private String regions = null;
+    private boolean partial = false;
+    private long last_checkpoint = 0;
+    private RunMetrics metrics = null;
+    private boolean quick = false;
+    private RegionSampler sampler = null;
+    private boolean exitOnError = true;
+    // loads the sites of the next contig while a single pass reads the current one
+    private SitePrefetcher prefetcher = null;
+    // a pipe can be opened once only, its header is kept here until the run
+    private BamStreamReader stream = null;
 
-    // read size
-//    int maxReadSize;
-//    int minReadSize;
     long referenceLength;
+    SAMSequenceDictionary dict;
+    // bases of the genome at each depth, the last bucket saturating
+    final long[] depth_bases = new long[DepthProfile.MAX_DEPTH + 1];
     long n_sites_covered = 0;
     long n_bases_mapped = 0;
     long n_bases_mapped_chrX = 0;
@@ -33,6 +100,13 @@ public class BamStats {
     long totalBases = 0;
     long alignedReads = 0;
     long duplicatedReads = 0;
+    final List<ContigStats> contigs = new ArrayList<>();
+    long n_known_sites = 0;
+    long n_known_sites_covered = 0;
+    // contigs whose panel sites were already checked against the coverage
+    final Set<String> counted_chroms = new HashSet<>();
+    // shards of a partial run, unmerged
+    final List<Shard> completed_shards = new ArrayList<>();
 
     public BamStats(String bamFile, ReferencePanelSite referencePanelSite, boolean countSecondaryReads) {
         this.bamFile = bamFile;
@@ -40,12 +114,208 @@ public class BamStats {
         this.countSecondaryReads = countSecondaryReads;
     }
 
+    public void setOffHeapCoverage(boolean offHeapCoverage) {
+        this.offHeapCoverage = offHeapCoverage;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setShardSize(int shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    public int getShardSize() {
+        return shardSize;
+    }
+
+    /**
+     * Process only the regions of this file, see {@link Shard#readRegions}; null for the whole genome.
+     */
+    public void setRegions(String regions) {
+        this.regions = regions;
+    }
+
+    /**
+     * Estimate the main figures from the index instead of counting the records, see {@link #run_quick}.
+     */
+    public void setQuick(boolean quick) {
+        this.quick = quick;
+    }
+
+    /**
+     * Estimate from randomly drawn windows instead of the whole BAM, null to read it all.
+     */
+    public void setSampler(RegionSampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Keep the raw counters of the shards for {@link #writePartial(String)} instead of summarizing them.
+     */
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    /**
+     * Inflate BGZF blocks on this many threads ahead of the single counting thread, 0 keeps htsjdk's reader.
+     */
+    public void setDecompressThreads(int decompressThreads) {
+        this.decompressThreads = decompressThreads;
+    }
+
+    /**
+     * Let htsjdk read ahead on its own background thread.
+     */
+    public void setAsyncIo(boolean asyncIo) {
+        this.asyncIo = asyncIo;
+    }
+
+    /**
+     * Leave the D and N operations of the CIGAR uncovered, mapped bases then count the aligned blocks only.
+     */
+    public void setSkipDeletions(boolean skipDeletions) {
+        this.skipDeletions = skipDeletions;
+    }
+
+    /**
+     * Count the reads found to be duplicates on the fly as if they were flagged, for BAMs never duplicate marked.
+     */
+    public void setFindDuplicates(boolean findDuplicates) {
+        this.findDuplicates = findDuplicates;
+    }
+
+    /**
+     * Write the input through to this file unchanged while it is read, null for none.
+     */
+    public void setTee(String tee) {
+        this.tee = tee;
+    }
+
+    /**
+     * Follow the per-base depth in the same pass, for the Coverage 2X and 5X rows and the depth outputs.
+     */
+    public void setDepth(boolean depth) {
+        this.depth = depth;
+    }
+
+    public void setBinSize(int binSize) {
+        this.binSize = binSize;
+    }
+
+    /**
+     * Write the number of bases at each depth to this file, null for none.
+     */
+    public void setDepthHistogram(String depthHistogram) {
+        this.depthHistogram = depthHistogram;
+        if (depthHistogram != null) depth = true;
+    }
+
+    /**
+     * Write the mean depth and coverage of fixed-size bins along every contig to this file, null for none.
+     */
+    public void setBinProfile(String binProfile) {
+        this.binProfile = binProfile;
+        if (binProfile != null) depth = true;
+    }
+
+    /**
+     * Whether an error that ends the run exits the JVM, or is thrown to the caller as a SAMException,
+     * as a server running many jobs needs.
+     */
+    public void setExitOnError(boolean exitOnError) {
+        this.exitOnError = exitOnError;
+    }
+
+    /**
+     * Write the counters of every read group and library to this file, null for none.
+     */
+    public void setReadGroupStats(String readGroupStats) {
+        this.readGroupStats = readGroupStats;
+    }
+
+    /**
+     * Further panels whose known sites are reported next to those of the main panel, null for none.
+     */
+    public void setPanels(PanelSet panels) {
+        this.panels = panels;
+    }
+
+    /**
+     * MAPQ thresholds in ascending order whose coverage is reported besides the unfiltered one, null for none.
+     */
+    public void setMapqTiers(int[] mapqTiers) {
+        this.mapqTiers = mapqTiers;
+    }
+
+    /**
+     * Keep the covered bases of every contig for {@link #writeCoverage(String)}.
+     */
+    public void setSaveCoverage(String saveCoverage) {
+        this.saveCoverage = saveCoverage;
+        keep_runs = saveCoverage != null || topUp != null;
+    }
+
+    /**
+     * Add the coverage and counters saved by an earlier run of the same sample to those of this BAM, null for none.
+     */
+    public void setTopUp(String topUp) {
+        this.topUp = topUp;
+        keep_runs = saveCoverage != null || topUp != null;
+    }
+
+    /**
+     * Save the partial results to this file at contig boundaries, null for none.
+     */
+    public void setCheckpoint(String checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Go on from the checkpoint file when there is one.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Least number of seconds between two checkpoints, contig boundaries coming faster are skipped.
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Resolve known sites while the reads stream by instead of keeping a coverage bitmap per contig.
+     * Memory no longer depends on the contig length, but the BAM must be sorted by coordinate.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Count and time the run into these metrics, null for none.
+     */
+    public void setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public void run(){
 
         long startTime = System.currentTimeMillis();
-        SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(new File(bamFile));
-
-        SAMFileHeader header = reader.getFileHeader();
+        SamReader reader = null;
+        SAMFileHeader header;
+        if (is_pipe()) {
+            header = open_stream().getFileHeader();
+        } else {
+            reader = openReader();
+            header = reader.getFileHeader();
+        }
 
         try {
             SAMFileHeader.SortOrder sortOrder = header.getSortOrder();
@@ -56,45 +326,364 @@ public class BamStats {
             System.err.println("[WARN] Non-standard header SortOrder value!");
         }
 
-        referenceLength = header.getSequenceDictionary().getReferenceLength();
+        dict = header.getSequenceDictionary();
+        referenceLength = dict.getReferenceLength();
+        if (readGroupStats != null) {
+            read_groups = new ReadGroups(header);
+            group_stats = new ReadGroupStats(read_groups, skipDeletions);
+        }
+        if (mapqTiers != null) tiers = new MapqTiers(mapqTiers, skipDeletions);
+        if (topUp != null) read_top_up();
+        if (metrics != null) {
+            metrics.setPanel(referencePanelSite);
+            // the progress of a single pass is its compressed offset
+            metrics.setTotal(reader != null ? new File(bamFile).length() : -1);
+        }
 
-        int chr_len;
-        int chrX_len;
-        int chrY_len = 0;
-        double chrX_depth = 0;
-        double chrY_depth = 0;
-        boolean[] coverage = null;
-        boolean is_chrX = false;
-        boolean is_chrY = false;
+        if (quick) {
+            if (reader == null || !reader.hasIndex()) {
+                fail("--quick needs an indexed BAM file.");
+            }
+            run_quick(reader);
+            closeReader(reader);
+            System.err.println("Overall analysis time: " + (System.currentTimeMillis() - startTime) / 1000 + " s");
+            return;
+        }
+        if (sampler != null) {
+            if (reader == null || !reader.hasIndex()) {
+                fail("--sample needs an indexed BAM file.");
+            }
+            closeReader(reader);
+            sampler.run(this, dict, referencePanelSite, threads);
+            System.err.println("Overall analysis time: " + (System.currentTimeMillis() - startTime) / 1000 + " s");
+            return;
+        }
 
+        boolean single_pass = reader == null || tee != null;
+        if (resume && single_pass) {
+            fail("--resume needs a BAM file, not a pipe or a tee.");
+        }
+        if (threads > 1 && single_pass)
+            System.err.println("[WARN] The input is read in a single pass, fall back to a single thread.");
+        else if (threads > 1 && !reader.hasIndex())
+            System.err.println("[WARN] No BAM index found, fall back to a single thread.");
+
+        if (partial) {
+            if (single_pass || !reader.hasIndex()) {
+                fail("A partial run needs an indexed BAM file.");
+            }
+            closeReader(reader);
+            run_partial(header);
+        } else if (threads > 1 && !single_pass && reader.hasIndex()) {
+            closeReader(reader);
+            run_parallel(header);
+        } else if (single_pass || decompressThreads > 0) {
+            if (reader != null) closeReader(reader);
+            long resume_at = resume_position(SINGLE_PASS);
+            try (BamStreamReader input = resume_at >= 0 ? BamStreamReader.open(bamFile, decompressThreads, resume_at) : open_stream()) {
+                if (metrics != null) metrics.addStream(input);
+                input.setReadGroups(read_groups);
+                run_serial(input, input.getFileHeader());
+            } catch (RunFailed e) {
+                throw e;
+            } catch (IOException | SAMException e) {
+                fail("failed to read " + bamFile + ": " + e.getMessage());
+            }
+            this.stream = null;
+        } else {
+            long resume_at = resume_position(SINGLE_PASS);
+            SAMRecordIterator it = resume_at >= 0
+                    ? reader.indexing().iterator(new BAMFileSpan(new Chunk(resume_at, Long.MAX_VALUE)))
+                    : reader.iterator();
+            if (reader.hasIndex()) {
+                UnplacedTailSource records = new UnplacedTailSource(BamRecord.of(it, read_groups), bamFile, reader, 1);
+                records.setReadGroups(read_groups);
+                records.setMetrics(metrics);
+                try {
+                    run_serial(records, header);
+                } finally {
+                    close_tail(records);
+                }
+            } else {
+                run_serial(BamRecord.of(it, read_groups), header);
+            }
+            it.close();
+            closeReader(reader);
+        }
+        if (!partial) {
+            if (top_up != null) add_top_up();
+            count_site_uncover_chrom();
+            if (panels != null) panels.finish();
+            summarize();
+        }
+        if (checkpoint != null) new File(checkpoint).delete();
+
+        long overallTime = System.currentTimeMillis();
+        System.err.println("Overall analysis time: " + (overallTime - startTime) / 1000 + " s");
+    }
+
+    /**
+     * An error that ended the run, already reported.
+     */
+    static class RunFailed extends SAMException {
+        private static final long serialVersionUID = 1L;
+
+        RunFailed(String message) {
+            super(message);
+        }
+    }
+
+    private void fail(String message) {
+        System.err.println("[ERROR] " + message);
+        if (exitOnError) System.exit(1);
+        throw new RunFailed(message);
+    }
+
+    /**
+     * Standard input given as "-", a named pipe or anything else that can be read only once.
+     */
+    private boolean is_pipe() {
+        return bamFile.equals("-") || (new File(bamFile).exists() && !Files.isRegularFile(Paths.get(bamFile)));
+    }
+
+    private BamStreamReader open_stream() {
+        if (stream != null) return stream;
+        try {
+            InputStream input = bamFile.equals("-") ? System.in : new FileInputStream(bamFile);
+            if (tee != null) input = new TeeInputStream(input, new BufferedOutputStream(new FileOutputStream(tee), 1 << 20));
+            stream = new BamStreamReader(input, decompressThreads);
+        } catch (IOException e) {
+            fail("failed to read " + bamFile + ": " + e.getMessage());
+        }
+        return stream;
+    }
+
+    /**
+     * Bytes of coverage bitmap this run holds at once, so samples can be scheduled against a memory budget.
+     */
+    public long coverageBufferBytes() {
+        SAMFileHeader header;
+        boolean parallel = false;
+        if (is_pipe()) {
+            header = open_stream().getFileHeader();
+        } else {
+            SamReader reader = openReader();
+            header = reader.getFileHeader();
+            parallel = threads > 1 && reader.hasIndex() && tee == null;
+            closeReader(reader);
+        }
+        if (streaming) return 0;
+        int max_chr_len = max_contig_length(header);
+        long bits = parallel ? (long) threads * Math.min(shardSize, max_chr_len) : (long) max_chr_len + 1;
+        return (bits + 63) / 64 * 8;
+    }
+
+    private static int max_contig_length(SAMFileHeader header) {
+        int max_chr_len = 0;
+        for (SAMSequenceRecord seq : header.getSequenceDictionary().getSequences())
+            max_chr_len = Math.max(max_chr_len, seq.getSequenceLength());
+        return max_chr_len;
+    }
+
+    SamReader openReader() {
+        SamReaderFactory factory = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT)
+                .setUseAsyncIo(asyncIo);
+        // the file offsets of the records are needed to checkpoint and for the progress
+        if (checkpoint != null || metrics != null) factory.enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS);
+        if (metrics != null) factory.inflaterFactory(metrics.inflaterFactory());
+        return factory.open(new File(bamFile));
+    }
+
+    /**
+     * Settings that change the counts, partial results only add up with the same.
+     */
+    String settings() {
+        return count_settings() + ",depth=" + depth + ",binSize=" + binSize;
+    }
+
+    /**
+     * Settings that change the counters and the coverage, saved coverage only adds up with the same.
+     */
+    private String count_settings() {
+        return "countSecondaryReads=" + countSecondaryReads + ",skipDeletions=" + skipDeletions
+                + (findDuplicates ? ",findDuplicates=true" : "");
+    }
+
+    private void read_top_up() {
+        try {
+            top_up = CoverageState.read(topUp);
+        } catch (IOException e) {
+            fail("failed to read " + topUp + ": " + e.getMessage());
+            return;
+        }
+        if (!dict.isSameDictionary(top_up.dict)) {
+            fail(topUp + " has another sequence dictionary than " + bamFile);
+        }
+        if (!top_up.settings.equals(count_settings())) {
+            fail(topUp + " was saved with other settings: " + top_up.settings + " vs " + count_settings());
+        }
+    }
+
+    /**
+     * OR the saved coverage into that of this run, add up the counters and count the known sites
+     * again from the merged coverage.
+     */
+    private void add_top_up() {
+        totalReads += top_up.totalReads;
+        totalBases += top_up.totalBases;
+        alignedReads += top_up.alignedReads;
+        duplicatedReads += top_up.duplicatedReads;
+        numSecondaryAlignments += top_up.numSecondaryAlignments;
+        List<ContigStats> all = new ArrayList<>(top_up.contigs);
+        all.addAll(contigs);
+        List<ContigStats> merged = CoverageState.by_name(all);
+        // a sorted BAM of all the data would visit the contigs in the order of the dictionary
+        merged.sort(Comparator.comparingInt(contig -> dict.getSequenceIndex(contig.name)));
+        contigs.clear();
+        contigs.addAll(merged);
+
+        n_known_sites = 0;
+        n_known_sites_covered = 0;
+        counted_chroms.clear();
+        for (ContigStats contig : contigs) {
+            if (!referencePanelSite.has_sites(contig.name)) continue;
+            int[] sites = referencePanelSite.load_sites(contig.name);
+            add_site_covered(contig.name, sites.length, contig.runs.countCovered(sites));
+        }
+        top_up = null;
+    }
+
+    /**
+     * Save the covered bases of every contig and the raw counters, so that a later run can top them up.
+     */
+    public void writeCoverage(String outfile) throws IOException {
+        CoverageState state = new CoverageState(count_settings(), dict, CoverageState.by_name(contigs));
+        state.totalReads = totalReads;
+        state.totalBases = totalBases;
+        state.alignedReads = alignedReads;
+        state.duplicatedReads = duplicatedReads;
+        state.numSecondaryAlignments = numSecondaryAlignments;
+        state.write(outfile);
+    }
+
+    /**
+     * Restore the state saved by an earlier run of the same mode.
+     *
+     * @return where to go on from, -1 to start from the beginning
+     */
+    private long resume_position(String mode) {
+        if (!resume || checkpoint == null || !new File(checkpoint).exists()) return -1;
+        try {
+            long position = Checkpoint.read(this, checkpoint, bamFile, mode);
+            System.err.println("Resuming from checkpoint " + checkpoint + " after " + contigs.size() + " contigs");
+            return position;
+        } catch (IOException e) {
+            fail("failed to resume from " + checkpoint + ": " + e.getMessage());
+        }
+        return -1;
+    }
+
+    private void save_checkpoint(String mode, long position) {
+        if (checkpoint == null || position < 0) return;
+        long now = System.currentTimeMillis();
+        if (now - last_checkpoint < checkpointInterval * 1000L) return;
+        try {
+            Checkpoint.write(this, checkpoint, bamFile, mode, position);
+            last_checkpoint = now;
+        } catch (IOException e) {
+            System.err.println("[WARN] failed to write checkpoint " + checkpoint + ": " + e.getMessage());
+        }
+    }
+
+    void closeReader(SamReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run_serial(BamRecord.Source reader, SAMFileHeader header) {
+        CoverageBitmap coverage = streaming ? null : new CoverageBitmap((long) max_contig_length(header) + 1, offHeapCoverage);
+        if (metrics != null) {
+            reader = metrics.time(reader, true);
+            if (coverage != null) metrics.addCoverageBuffer(coverage.bytes());
+        }
+        CoverageSweep sweep = new CoverageSweep();
+        SAMSequenceDictionary dict = header.getSequenceDictionary();
+        // a site index is decoded along the reads when streaming, there is nothing to load ahead
+        prefetcher = streaming && referencePanelSite.site_index != null
+                ? null : new SitePrefetcher(referencePanelSite, dict, this::has_pending_sites);
+        long loop_start = System.nanoTime();
+        try {
+            run_serial(reader, dict, coverage, sweep);
+        } finally {
+            if (metrics != null) metrics.addLoop(System.nanoTime() - loop_start);
+            if (prefetcher != null) prefetcher.close();
+            prefetcher = null;
+        }
+    }
+
+    private void run_serial(BamRecord.Source reader, SAMSequenceDictionary dict, CoverageBitmap coverage, CoverageSweep sweep) {
+        SiteCursor cursor = null;
+        int[] contig_sites = null;
+        PanelSet.Sites panel_sites = null;
+        PanelSet.Tally tally = null;
+        CoverageRuns runs = null;
+
+        ContigStats contig = null;
+        BamRecord read = new BamRecord();
+        DuplicateFinder duplicates = findDuplicates ? new DuplicateFinder() : null;
+
+        int pre_index = -1;
         String pre_chr = "";
-        for (SAMRecord read : reader) {
-            if(read.getContig() != null && !read.getContig().equals(pre_chr)){
-                chr_len = header.getSequenceDictionary().getSequence(read.getContig()).getSequenceLength();
-                if(!pre_chr.isEmpty()) {
-                    referencePanelSite.count_site_covered(pre_chr, coverage);
-                    for (boolean b : coverage) if (b) n_sites_covered++;
+        long contig_start = 0;
+        while (next_record(reader, read)) {
+            if(read.isPlaced() && read.getReferenceIndex() != pre_index){
+                if(contig != null) {
+                    check_sorted(duplicates, pre_chr);
+                    finish_contig(contig, sweep, coverage, cursor, contig_sites);
+                    count_panels(pre_chr, panel_sites, tally, coverage);
+                    finish_tiers(tiers, pre_chr);
+                    if (group_stats != null) group_stats.finishSites();
+                    if (metrics != null) metrics.addContig(pre_chr, System.nanoTime() - contig_start);
                     System.err.println("Processing finished: " + pre_chr);
-                    if (pre_chr.endsWith("X")){
-                        chrX_len = header.getSequenceDictionary().getSequence(pre_chr).getSequenceLength();
-                        chrX_depth = (double)n_bases_mapped_chrX / chrX_len;
-                    }else if (pre_chr.endsWith("Y")){
-                        chrY_len = header.getSequenceDictionary().getSequence(pre_chr).getSequenceLength();
-                        chrY_depth = (double)n_bases_mapped_chrY / chrY_len;
-                        chrY_cov = count_coverage_chrY(coverage);
-                    }
+                    save_checkpoint(SINGLE_PASS, read.filePointer);
                 }
-                System.err.println("Processing   ...   : " + read.getContig());
-                coverage = new boolean[chr_len+1];
-                System.gc();
-                pre_chr = read.getContig();
-                is_chrX = pre_chr.endsWith("X");
-                is_chrY = pre_chr.endsWith("Y");
+                SAMSequenceRecord seq = dict.getSequence(read.getReferenceIndex());
+                System.err.println("Processing   ...   : " + seq.getSequenceName());
+                int chr_len = seq.getSequenceLength();
+                pre_index = read.getReferenceIndex();
+                pre_chr = seq.getSequenceName();
+                contig_start = System.nanoTime();
+                boolean pending = has_pending_sites(pre_chr);
+                // the sites are wanted from the start of the contig when streaming, following read groups or MAPQ tiers
+                contig_sites = pending && (group_stats != null || tiers != null || (streaming && prefetcher != null))
+                        ? take_sites(pre_chr) : null;
+                panel_sites = panels != null ? panels.sites(pre_chr) : null;
+                if (streaming) {
+                    cursor = pending ? new SiteCursor(contig_sites != null
+                            ? SiteCursor.of(contig_sites, 0, Integer.MAX_VALUE) : referencePanelSite.site_positions(pre_chr)) : null;
+                    tally = panel_sites != null ? panel_sites.tally(0, Integer.MAX_VALUE) : null;
+                    runs = keep_runs ? new CoverageRuns() : null;
+                    sweep.reset(timed(both(both(cursor, tally), runs), true));
+                } else {
+                    coverage.reset((long) chr_len + 1);
+                    sweep.reset(timed(coverage::setRange, false));
+                    if (prefetcher != null && contig_sites == null) prefetcher.expect(pre_chr);
+                }
+                if (group_stats != null) group_stats.startSites(contig_sites, 0, Integer.MAX_VALUE);
+                if (tiers != null) tiers.start(contig_sites, 1, Integer.MAX_VALUE);
+                contig = new ContigStats(pre_chr, chr_len);
+                if (depth) contig.depth = new DepthProfile(1, chr_len, binSize);
+                contig.runs = runs;
+                contig.visited = true;
+                contigs.add(contig);
             }
 
+            if (duplicates != null && duplicates.isDuplicate(read)) read.setDuplicateReadFlag();
             int readSize = read.getReadLength();
-            if(is_chrX) n_bases_mapped_chrX +=readSize;
-            if(is_chrY) n_bases_mapped_chrY +=readSize;
+            if(contig != null) contig.readBases += readSize;
 
             if (read.isSecondaryOrSupplementary()) {
                 numSecondaryAlignments++;
@@ -103,13 +692,8 @@ public class BamStats {
 
             //compute read size
             totalBases += readSize;
-//            if (readSize > maxReadSize) {
-//                maxReadSize = readSize;
-//            }
-//            if (readSize < minReadSize) {
-//                minReadSize = readSize;
-//            }
             totalReads++;
+            if (group_stats != null) group_stats.add(read, true);
 
             // accumulate only mapped reads
             if (read.getReadUnmappedFlag()) continue;
@@ -119,34 +703,639 @@ public class BamStats {
                 duplicatedReads++;
                 continue;
             }
-            if(coverage != null){
-                for (int i = read.getAlignmentStart(); i <= read.getAlignmentEnd(); i++) {
-                    coverage[i]=true;
-                    n_bases_mapped+=1;
+            if(contig != null){
+                contig.basesMapped += add_coverage(read, sweep, contig.depth, 0, Long.MAX_VALUE);
+                if (tiers != null) tiers.add(read, true);
+            }
+        }
+        if(contig != null){
+            check_sorted(duplicates, pre_chr);
+            finish_contig(contig, sweep, coverage, cursor, contig_sites);
+            count_panels(pre_chr, panel_sites, tally, coverage);
+            finish_tiers(tiers, pre_chr);
+            if (group_stats != null) group_stats.finishSites();
+            if (metrics != null) metrics.addContig(pre_chr, System.nanoTime() - contig_start);
+        }
+        System.err.println("Processing finished: " + pre_chr);
+    }
+
+    private CoverageSweep.Sink timed(CoverageSweep.Sink sink, boolean sites) {
+        return metrics == null ? sink : metrics.time(sink, sites);
+    }
+
+    /**
+     * A sink feeding both, either of which may be null.
+     */
+    private static CoverageSweep.Sink both(CoverageSweep.Sink a, CoverageSweep.Sink b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return (start, end) -> {
+            a.cover(start, end);
+            b.cover(start, end);
+        };
+    }
+
+    private static void close_tail(UnplacedTailSource tail) {
+        try {
+            tail.close();
+        } catch (IOException e) {
+            throw new SAMException(e.getMessage(), e);
+        }
+    }
+
+    private boolean next_record(BamRecord.Source reader, BamRecord read) {
+        try {
+            return reader.next(read);
+        } catch (IOException e) {
+            throw new SAMException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Add the reference bases of a read within [from, to] to the sweep and the depth, which may be null.
+     *
+     * @return the bases mapped by the whole read
+     */
+    private long add_coverage(BamRecord read, CoverageSweep sweep, DepthProfile depth, long from, long to) {
+        int start = read.getAlignmentStart();
+        int end = read.getAlignmentEnd();
+        if (end < start) return 0;
+        long first = Math.max(start, from);
+        if (depth != null) depth.advance(first);
+        if (!skipDeletions) {
+            sweep.add(first, Math.min(end, to));
+            if (depth != null) depth.add(first, Math.min(end, to));
+            return end - start + 1;
+        }
+        // the first block in range joins the sweep now, the later ones once the sweep gets there
+        long mapped = 0;
+        long pos = start;
+        for (int i = 0; i < read.cigarLength; i++) {
+            int op = read.cigar[i] & 0xf;
+            int len = read.cigar[i] >>> 4;
+            if (BamRecord.isAligned(op)) {
+                mapped += len;
+                long s = Math.max(pos, from);
+                long e = Math.min(pos + len - 1, to);
+                if (s == first) sweep.add(s, e);
+                else sweep.defer(s, e);
+                if (depth != null) depth.add(s, e);
+            }
+            if (BamRecord.consumesReference(op)) pos += len;
+        }
+        return mapped;
+    }
+
+    /**
+     * @param sites the sites of the contig when taken at its start, null to take them now
+     */
+    private void finish_contig(ContigStats contig, CoverageSweep sweep, CoverageBitmap coverage, SiteCursor cursor, int[] sites) {
+        sweep.flush();
+        finish_depth(contig.name, contig.depth);
+        if (coverage == null) {
+            if (!sweep.isSorted()) {
+                fail("Streaming needs a BAM sorted by coordinate, " + contig.name + " is not.");
+            }
+            contig.sitesCovered = sweep.covered();
+            if (cursor != null) {
+                cursor.finish();
+                add_site_covered(contig.name, cursor.known(), cursor.covered());
+            }
+            return;
+        }
+        contig.sitesCovered = sweep.isSorted() ? sweep.covered() : coverage.cardinality();
+        if (keep_runs) contig.runs = CoverageRuns.of(coverage, 0);
+        count_site_covered(contig.name, coverage, sites);
+    }
+
+    private void finish_depth(String chr, DepthProfile depth) {
+        if (depth == null) return;
+        depth.finish();
+        if (!depth.isSorted()) {
+            fail("The depth distribution needs a BAM sorted by coordinate, " + chr + " is not.");
+        }
+    }
+
+    private void finish_tiers(MapqTiers tiers, String chr) {
+        if (tiers != null && !tiers.finish()) {
+            fail("MAPQ tiers need a BAM sorted by coordinate, " + chr + " is not.");
+        }
+    }
+
+    private void check_sorted(DuplicateFinder duplicates, String chr) {
+        if (duplicates != null && !duplicates.isSorted()) {
+            fail("Finding duplicates needs a BAM sorted by coordinate, " + chr + " is not.");
+        }
+    }
+
+    private boolean has_pending_sites(String chr) {
+        return referencePanelSite.has_sites(chr) && !counted_chroms.contains(chr);
+    }
+
+    private void count_site_covered(String chr, CoverageBitmap coverage, int[] sites) {
+        if(!has_pending_sites(chr)) return;
+
+        if (sites == null) sites = take_sites(chr);
+        long t = System.nanoTime();
+        add_site_covered(chr, sites.length, ReferencePanelSite.count_covered(sites, 0, Integer.MAX_VALUE, coverage, 0));
+        if (metrics != null) metrics.addSites(System.nanoTime() - t);
+    }
+
+    /**
+     * Add the sites of the further panels once a contig is done, from the tally when streaming.
+     */
+    private void count_panels(String chr, PanelSet.Sites sites, PanelSet.Tally tally, CoverageBitmap coverage) {
+        if (sites == null) return;
+        long t = System.nanoTime();
+        panels.add(chr, sites.known, tally != null ? tally.covered() : sites.count(coverage, 0, Integer.MAX_VALUE, 0));
+        if (metrics != null) metrics.addSites(System.nanoTime() - t);
+    }
+
+    private int[] take_sites(String chr) {
+        return prefetcher != null ? prefetcher.take(chr) : referencePanelSite.load_sites(chr);
+    }
+
+    private void add_site_covered(String chr, long known_sites, long known_sites_covered) {
+        n_known_sites += known_sites;
+        n_known_sites_covered += known_sites_covered;
+        counted_chroms.add(chr);
+    }
+
+    /**
+     * Panel contigs without any read still count their sites as known, duplicates included.
+     */
+    private void count_site_uncover_chrom() {
+        for(String chr: referencePanelSite.contigs()){
+            if (!counted_chroms.contains(chr))
+                n_known_sites += referencePanelSite.count_sites(chr);
+        }
+    }
+
+    /**
+     * Process the genome as independent shards on a work-stealing pool. Every shard opens its own
+     * reader and queries its range through the index; the partial counters are merged in shard order.
+     */
+    private void run_parallel(SAMFileHeader header) {
+        SAMSequenceDictionary dict = header.getSequenceDictionary();
+        List<Shard> shards = Shard.split(dict, shardSize);
+        shards.add(Shard.unmapped());
+        int first = (int) Math.max(resume_position(SHARDED), 0);
+        shards = shards.subList(first, shards.size());
+
+        final Map<String, Integer> known_sites = new ConcurrentHashMap<>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<ForkJoinTask<Shard>> tasks = submit_shards(pool, shards, known_sites);
+        merge_shards(dict, tasks.stream().map(ForkJoinTask::join).iterator(), first, known_sites);
+        pool.shutdown();
+    }
+
+    /**
+     * Process only the given shards and keep them unmerged, for a partial file.
+     */
+    private void run_partial(SAMFileHeader header) {
+        SAMSequenceDictionary dict = header.getSequenceDictionary();
+        List<Shard> shards;
+        if (regions != null) {
+            try {
+                shards = Shard.readRegions(regions, dict, shardSize);
+            } catch (IOException e) {
+                fail("failed to read regions " + regions + ": " + e.getMessage());
+                return;
+            }
+        } else {
+            shards = Shard.split(dict, shardSize);
+            shards.add(Shard.unmapped());
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        List<ForkJoinTask<Shard>> tasks = submit_shards(pool, shards, new ConcurrentHashMap<>());
+        for (ForkJoinTask<Shard> task : tasks) completed_shards.add(task.join());
+        pool.shutdown();
+    }
+
+    private List<ForkJoinTask<Shard>> submit_shards(ForkJoinPool pool, List<Shard> shards, final Map<String, Integer> known_sites) {
+        int max_shard_len = 0;
+        final Map<String, AtomicInteger> pending = new HashMap<>();
+        for (Shard shard : shards) {
+            max_shard_len = Math.max(max_shard_len, shard.length());
+            if (!shard.isUnmapped())
+                pending.computeIfAbsent(shard.contig, k -> new AtomicInteger()).incrementAndGet();
+        }
+        final long bitmap_len = max_shard_len;
+        final ThreadLocal<CoverageBitmap> coverage = ThreadLocal.withInitial(() -> {
+            if (streaming) return null;
+            CoverageBitmap bitmap = new CoverageBitmap(bitmap_len, offHeapCoverage);
+            if (metrics != null) metrics.addCoverageBuffer(bitmap.bytes());
+            return bitmap;
+        });
+        final Map<String, int[]> sites = new ConcurrentHashMap<>();
+        final Map<String, PanelSet.Sites> panel_sites = new ConcurrentHashMap<>();
+
+        System.err.println("Processing " + shards.size() + " shards with " + threads + " threads ...");
+        if (metrics != null) metrics.setTotal(shards.size());
+        List<ForkJoinTask<Shard>> tasks = new ArrayList<>();
+        for (Shard shard : shards) {
+            tasks.add(pool.submit(() -> {
+                if (shard.isUnmapped()) return process_shard(shard, null, null, null);
+                int[] contig_sites = null;
+                if (referencePanelSite.has_sites(shard.contig)) {
+                    contig_sites = sites.computeIfAbsent(shard.contig, referencePanelSite::load_sites);
+                    known_sites.put(shard.contig, contig_sites.length);
+                }
+                PanelSet.Sites contig_panel_sites = panels != null ? panel_sites.computeIfAbsent(shard.contig, panels::sites) : null;
+                process_shard(shard, coverage.get(), contig_sites, contig_panel_sites);
+                if (pending.get(shard.contig).decrementAndGet() == 0) {
+                    sites.remove(shard.contig);
+                    panel_sites.remove(shard.contig);
+                    System.err.println("Processing finished: " + shard.contig);
                 }
+                return shard;
+            }));
+        }
+        return tasks;
+    }
+
+    /**
+     * Add up shards given in genome order, the unmapped one last. A checkpoint holds the index of the
+     * next shard, counted from first.
+     */
+    private void merge_shards(SAMSequenceDictionary dict, Iterator<Shard> shards, int first, Map<String, Integer> known_sites) {
+        ContigStats contig = null;
+        // the contig a single pass would be in, taking the reads ahead of a shard's first mapped one
+        ContigStats last_visited = contigs.isEmpty() ? null : contigs.get(contigs.size() - 1);
+        long known_sites_covered = 0;
+        long[] panel_known = null;
+        long[] panel_covered = null;
+        for (int i = 0; shards.hasNext(); i++) {
+            Shard shard = shards.next();
+            if (!shard.isUnmapped() && (contig == null || !contig.name.equals(shard.contig))) {
+                merge_contig(contig, known_sites, known_sites_covered, panel_known, panel_covered);
+                if (contig != null) save_checkpoint(SHARDED, first + i);
+                contig = new ContigStats(shard.contig, dict.getSequence(shard.contig).getSequenceLength());
+                known_sites_covered = 0;
+                panel_known = null;
+                panel_covered = null;
+            }
+            totalReads += shard.totalReads;
+            totalBases += shard.totalBases;
+            alignedReads += shard.alignedReads;
+            duplicatedReads += shard.duplicatedReads;
+            numSecondaryAlignments += shard.numSecondaryAlignments;
+            if (group_stats != null) group_stats.add(shard.groups);
+            if (tiers != null && shard.tiers != null) tiers.add(shard.tiers);
+            if (last_visited != null) last_visited.readBases += shard.leadingBases;
+            if (shard.isUnmapped()) continue;
+
+            contig.add(shard.stats);
+            if (shard.stats.visited) last_visited = contig;
+            known_sites_covered += shard.knownSitesCovered;
+            if (shard.panelCovered != null) {
+                panel_known = shard.panelKnown;
+                if (panel_covered == null) panel_covered = new long[panel_known.length];
+                for (int p = 0; p < panel_covered.length; p++) panel_covered[p] += shard.panelCovered[p];
             }
         }
-        if(coverage != null){
-            for (boolean b : coverage) if (b) n_sites_covered++;
-            referencePanelSite.count_site_covered(pre_chr, coverage);
-            if(is_chrY) {
-                chrY_cov = count_coverage_chrY(coverage);
+        merge_contig(contig, known_sites, known_sites_covered, panel_known, panel_covered);
+    }
+
+    private void merge_contig(ContigStats contig, Map<String, Integer> known_sites, long known_sites_covered,
+                              long[] panel_known, long[] panel_covered) {
+        if (contig == null || !contig.visited) return;
+        contigs.add(contig);
+        if (known_sites.containsKey(contig.name))
+            add_site_covered(contig.name, known_sites.get(contig.name), known_sites_covered);
+        if (panel_covered != null) panels.add(contig.name, panel_known, panel_covered);
+    }
+
+    /**
+     * Count the reads of one shard, the bitmap being null for streaming and the sites null when the panel has none,
+     * as are those of the further panels.
+     */
+    Shard process_shard(Shard shard, CoverageBitmap coverage, int[] sites, PanelSet.Sites panel_sites) {
+        return process_shard(shard, null, coverage, sites, panel_sites);
+    }
+
+    /**
+     * Count the reads of one shard queried through the given reader, which is left open, or through
+     * a reader of its own when null.
+     */
+    Shard process_shard(Shard shard, SamReader shared, CoverageBitmap coverage, int[] sites, PanelSet.Sites panel_sites) {
+        long shard_start = System.nanoTime();
+        SamReader reader = shared != null ? shared : openReader();
+        SAMRecordIterator it = null;
+        UnplacedTailSource tail = null;
+        BamRecord.Source records;
+        if (shard.isUnmapped()) {
+            tail = new UnplacedTailSource(null, bamFile, reader, 1);
+            tail.setReadGroups(read_groups);
+            tail.setMetrics(metrics);
+            records = tail;
+        } else {
+            // the duplicates of the first reads may have started before the shard
+            int from = findDuplicates ? Math.max(1, shard.start - DuplicateFinder.WINDOW) : shard.start;
+            it = reader.query(shard.contig, from, shard.end, false);
+            records = BamRecord.of(it, read_groups);
+        }
+        if (metrics != null) records = metrics.time(records, false, shard.isUnmapped() ? Integer.MIN_VALUE : shard.start);
+        long loop_start = System.nanoTime();
+        BamRecord read = new BamRecord();
+        CoverageSweep sweep = new CoverageSweep();
+        SiteCursor cursor = null;
+        PanelSet.Tally tally = null;
+        if (depth && !shard.isUnmapped()) shard.stats.depth = new DepthProfile(shard.start, shard.end, binSize);
+        if (coverage != null) {
+            coverage.reset(shard.length());
+            sweep.reset(timed((from, to) -> coverage.setRange(from - shard.start, to - shard.start), false));
+        } else if (sites != null || panel_sites != null || keep_runs) {
+            if (sites != null) cursor = new SiteCursor(SiteCursor.of(sites, shard.start, shard.end));
+            if (panel_sites != null) tally = panel_sites.tally(shard.start, shard.end);
+            if (keep_runs && !shard.isUnmapped()) shard.stats.runs = new CoverageRuns();
+            sweep.reset(timed(both(both(cursor, tally), shard.stats.runs), true));
+        }
+
+        DuplicateFinder duplicates = findDuplicates ? new DuplicateFinder() : null;
+        if (read_groups != null) {
+            shard.groups = new ReadGroupStats(read_groups, skipDeletions);
+            if (!shard.isUnmapped()) shard.groups.startSites(sites, shard.start, shard.end);
+        }
+        if (mapqTiers != null && !shard.isUnmapped()) {
+            shard.tiers = new MapqTiers(mapqTiers, skipDeletions);
+            shard.tiers.start(sites, shard.start, shard.end);
+        }
+        while (next_record(records, read)) {
+            if (duplicates != null && duplicates.isDuplicate(read)) read.setDuplicateReadFlag();
+            boolean owner = shard.isUnmapped() || read.getAlignmentStart() >= shard.start;
+            if (!owner && read.getAlignmentEnd() < shard.start) continue;
+
+            int readSize = read.getReadLength();
+            if (owner) {
+                if (!shard.isUnmapped()) shard.stats.visited |= !read.getReadUnmappedFlag();
+                if (shard.stats.visited) shard.stats.readBases += readSize;
+                else shard.leadingBases += readSize;
+            }
+
+            if (read.isSecondaryOrSupplementary()) {
+                if (owner) shard.numSecondaryAlignments++;
+                if (!countSecondaryReads) continue;
+            }
+
+            if (owner) {
+                shard.totalBases += readSize;
+                shard.totalReads++;
+            }
+            if (shard.groups != null) shard.groups.add(read, owner);
+
+            if (read.getReadUnmappedFlag()) continue;
+            if (owner) shard.alignedReads++;
+
+            if (read.getDuplicateReadFlag()) {
+                if (owner) shard.duplicatedReads++;
+                continue;
+            }
+            if (!shard.isUnmapped()) {
+                long mapped = add_coverage(read, sweep, shard.stats.depth, shard.start, shard.end);
+                if (owner) shard.stats.basesMapped += mapped;
+                if (shard.tiers != null) shard.tiers.add(read, owner);
             }
         }
-        referencePanelSite.count_site_uncover_chrom();
-        System.err.println("Processing finished: " + pre_chr);
+        if (it != null) it.close();
+        if (tail != null) close_tail(tail);
+        if (shared == null) closeReader(reader);
+        if (shard.groups != null) shard.groups.finishSites();
+
+        if (!shard.isUnmapped()) {
+            check_sorted(duplicates, shard.contig);
+            finish_tiers(shard.tiers, shard.contig);
+            sweep.flush();
+            finish_depth(shard.contig, shard.stats.depth);
+            shard.stats.sitesCovered = sweep.isSorted() || coverage == null ? sweep.covered() : coverage.cardinality();
+            if (keep_runs && coverage != null) shard.stats.runs = CoverageRuns.of(coverage, shard.start);
+            if (cursor != null) {
+                cursor.finish();
+                shard.knownSitesCovered = cursor.covered();
+            } else if (sites != null) {
+                long t = System.nanoTime();
+                shard.knownSitesCovered = ReferencePanelSite.count_covered(sites, shard.start, shard.end, coverage, shard.start);
+                if (metrics != null) metrics.addSites(System.nanoTime() - t);
+            }
+            if (panel_sites != null) {
+                long t = System.nanoTime();
+                shard.panelKnown = panel_sites.known;
+                shard.panelCovered = tally != null ? tally.covered() : panel_sites.count(coverage, shard.start, shard.end, shard.start);
+                if (metrics != null) metrics.addSites(System.nanoTime() - t);
+            }
+        }
+        if (metrics != null) {
+            metrics.addLoop(System.nanoTime() - loop_start);
+            if (!shard.isUnmapped()) metrics.addContig(shard.contig, System.nanoTime() - shard_start);
+            metrics.addDone(1);
+        }
+        return shard;
+    }
+
+    /**
+     * Derive the genome wide coverage and the chrX/chrY depth from the contigs in visiting order.
+     * The depth of a sex chromosome is only taken when it is not the last contig visited.
+     */
+    private void summarize() {
+        double chrX_depth = 0;
+        double chrY_depth = 0;
+        n_sites_covered = 0;
+        n_bases_mapped = 0;
+        n_bases_mapped_chrX = 0;
+        n_bases_mapped_chrY = 0;
+        Arrays.fill(depth_bases, 0);
+        for (int i = 0; i < contigs.size(); i++) {
+            ContigStats contig = contigs.get(i);
+            boolean last = i == contigs.size() - 1;
+            if (contig.depth != null) {
+                for (int d = 1; d < depth_bases.length; d++) depth_bases[d] += contig.depth.bases(d);
+            }
+            n_sites_covered += contig.sitesCovered;
+            n_bases_mapped += contig.basesMapped;
+            if (contig.name.endsWith("X")) {
+                n_bases_mapped_chrX += contig.readBases;
+                if (!last) chrX_depth = (double) n_bases_mapped_chrX / contig.length;
+            } else if (contig.name.endsWith("Y")) {
+                n_bases_mapped_chrY += contig.readBases;
+                if (!last) chrY_depth = (double) n_bases_mapped_chrY / contig.length;
+                chrY_cov = (double) contig.sitesCovered / (contig.length + 1);
+            }
+        }
+
+        if (depth) {
+            depth_bases[0] = referenceLength;
+            for (int d = 1; d < depth_bases.length; d++) depth_bases[0] -= depth_bases[d];
+        }
 
         if(chrY_depth != 0){
             XY_depth_ratio = chrX_depth / chrY_depth;
         }else {
             XY_depth_ratio = 1000;
         }
+    }
+
+    /**
+     * Write the raw counters of a partial run.
+     */
+    public void writePartial(String outfile) throws IOException {
+        new PartialStats(settings(), depth, binSize, dict, completed_shards).write(outfile);
+    }
+
+    /**
+     * Add up the partial files of runs over disjoint parts of the same genome, as if all their
+     * shards had been processed by this run. Shards that cover the same range, such as those of
+     * BAMs split by region, are all added.
+     */
+    public void merge(List<String> partial_files) throws IOException {
+        long startTime = System.currentTimeMillis();
+        List<Shard> shards = new ArrayList<>();
+        String merged_settings = null;
+        for (String file : partial_files) {
+            PartialStats part = PartialStats.read(file);
+            if (dict == null) {
+                dict = part.dict;
+                merged_settings = part.settings;
+                depth = part.depth;
+                binSize = part.binSize;
+            } else if (!dict.isSameDictionary(part.dict)) {
+                throw new IOException(file + " has another sequence dictionary than " + partial_files.get(0));
+            } else if (!merged_settings.equals(part.settings)) {
+                throw new IOException(file + " was run with other settings than " + partial_files.get(0)
+                        + ": " + part.settings + " vs " + merged_settings);
+            }
+            shards.addAll(part.shards);
+            System.err.println("Read " + part.shards.size() + " shards from " + file);
+        }
+        if (dict == null) throw new IOException("no partial file to merge");
+        if ((depthHistogram != null || binProfile != null) && !depth)
+            throw new IOException("the partial files hold no depth, run them with --depth");
+        referenceLength = dict.getReferenceLength();
+        shards.sort(Shard.genomeOrder(dict));
 
-        long overallTime = System.currentTimeMillis();
-        System.err.println("Overall analysis time: " + (overallTime - startTime) / 1000 + " s");
+        Map<String, Integer> known_sites = new HashMap<>();
+        for (Shard shard : shards) {
+            if (!shard.isUnmapped() && shard.stats.visited && !known_sites.containsKey(shard.contig)
+                    && referencePanelSite.has_sites(shard.contig))
+                known_sites.put(shard.contig, referencePanelSite.load_sites(shard.contig).length);
+        }
+        merge_shards(dict, shards.iterator(), 0, known_sites);
+        count_site_uncover_chrom();
+        summarize();
+        System.err.println("Overall merge time: " + (System.currentTimeMillis() - startTime) / 1000 + " s");
+    }
+
+    /**
+     * Estimate the reads, the mapping rate, the depth and the X/Y depth ratio from the mapped and
+     * unmapped counts of the index and the contig lengths. The index counts every record, so the
+     * share of secondary records and the mean reference span of the counted reads are taken from
+     * windows spread evenly over the contigs holding records, each read for a share of the sample
+     * in proportion to the records the index places in it.
+     */
+    private void run_quick(SamReader reader) {
+        BAMIndex index = reader.indexing().getIndex();
+        long aligned = 0;
+        long unaligned = 0;
+        long records_X = 0, records_Y = 0, length_X = 0, length_Y = 0;
+        long[] contig_records = new long[dict.size()];
+        long all_placed = 0;
+        SAMSequenceDictionary indexed = new SAMSequenceDictionary();
+        for (int i = 0; i < dict.size(); i++) {
+            BAMIndexMetaData meta = index.getMetaData(i);
+            if (meta == null) continue;
+            aligned += meta.getAlignedRecordCount();
+            unaligned += meta.getUnalignedRecordCount();
+            // the sex chromosome depth of a full run counts every record placed on them
+            SAMSequenceRecord seq = dict.getSequence(i);
+            long placed = meta.getAlignedRecordCount() + meta.getUnalignedRecordCount();
+            contig_records[i] = placed;
+            all_placed += placed;
+            if (placed > 0) indexed.addSequence(new SAMSequenceRecord(seq.getSequenceName(), seq.getSequenceLength()));
+            if (seq.getSequenceName().endsWith("X")) {
+                records_X += placed;
+                length_X += seq.getSequenceLength();
+            } else if (seq.getSequenceName().endsWith("Y")) {
+                records_Y += placed;
+                length_Y += seq.getSequenceLength();
+            }
+        }
+        if (index instanceof AbstractBAMFileIndex) {
+            Long no_coordinate = ((AbstractBAMFileIndex) index).getNoCoordinateCount();
+            if (no_coordinate != null) unaligned += no_coordinate;
+        }
+
+        // the head of the BAM alone would be the start of the first contig, without any sex chromosome
+        long n_mapped = 0, n_mapped_secondary = 0, span = 0;
+        int window_size = (int) Math.max(1, (indexed.getReferenceLength() + QUICK_WINDOWS - 1) / QUICK_WINDOWS);
+        for (Shard window : Shard.split(indexed, window_size)) {
+            SAMSequenceRecord seq = dict.getSequence(window.contig);
+            long quota = Math.round((double) QUICK_SAMPLE * contig_records[seq.getSequenceIndex()] / all_placed
+                    * window.length() / seq.getSequenceLength());
+            long n = 0;
+            SAMRecordIterator it = reader.query(window.contig, window.start, window.end, false);
+            while (it.hasNext() && n < quota) {
+                SAMRecord read = it.next();
+                // reads starting before the window belong to the one before
+                if (read.getAlignmentStart() < window.start) continue;
+                n++;
+                if (read.getReadUnmappedFlag()) continue;
+                boolean secondary = read.isSecondaryOrSupplementary();
+                n_mapped++;
+                if (secondary) n_mapped_secondary++;
+                if (read.getDuplicateReadFlag() || (secondary && !countSecondaryReads)) continue;
+                if (!skipDeletions) {
+                    span += read.getAlignmentEnd() - read.getAlignmentStart() + 1;
+                    continue;
+                }
+                for (CigarElement e : read.getCigar().getCigarElements())
+                    if (e.getOperator().isAlignment()) span += e.getLength();
+            }
+            it.close();
+        }
+
+        // secondary records are mapped, the unmapped ones count as reads as they are
+        double records = aligned + unaligned;
+        totalReads = Math.round(countSecondaryReads || n_mapped == 0 ? records
+                : records - (double) aligned * n_mapped_secondary / n_mapped);
+        alignedReads = Math.round(countSecondaryReads || n_mapped == 0 ? aligned : (double) aligned * (n_mapped - n_mapped_secondary) / n_mapped);
+        // reference bases counted per mapped record of the index
+        double bases_per_record = n_mapped == 0 ? 0 : (double) span / n_mapped;
+        n_bases_mapped = Math.round(aligned * bases_per_record);
+
+        // the read length cancels out of the ratio
+        double chrX_depth = length_X == 0 ? 0 : (double) records_X / length_X;
+        double chrY_depth = length_Y == 0 ? 0 : (double) records_Y / length_Y;
+        XY_depth_ratio = chrY_depth != 0 ? chrX_depth / chrY_depth : 1000;
+    }
+
+    /**
+     * The rows of a quick run, every value being an estimate.
+     */
+    private Pair<List<String>, List<String>> getEstimateResult() {
+        final List<String> names = new ArrayList<>();
+        final List<String> values = new ArrayList<>();
+        names.add("Total Reads (estimate)");
+        values.add(Long.toString(totalReads));
+        names.add("Mapping Rate (estimate)");
+        values.add(StatsUtils.divide(alignedReads, totalReads));
+        names.add("Average Depth (estimate)");
+        values.add(StatsUtils.divide(n_bases_mapped, referenceLength));
+        names.add("X/Y Depth Ratio (estimate)");
+        values.add(StatsUtils.realFormat(XY_depth_ratio, 2));
+        // the coverage that settles a ratio between 2 and 4.5 is not known without the reads
+        names.add("Sex (estimate)");
+        String sex_info = "(" + StatsUtils.realFormat(XY_depth_ratio, 2) + ")";
+        if (XY_depth_ratio < 2)
+            values.add("M " + sex_info);
+        else if (XY_depth_ratio > 4.5)
+            values.add("F " + sex_info);
+        else
+            values.add("- " + sex_info);
+        return Pair.create(names, values);
     }
 
     private Pair<List<String>, List<String>> getReportResult() {
+        if (quick) return getEstimateResult();
+        if (sampler != null) return sampler.getReportResult(referenceLength);
         final List<String> names = new ArrayList<>();
         final List<String> values = new ArrayList<>();
         names.add("Total Reads");
@@ -156,15 +1345,39 @@ public class BamStats {
         names.add("Bases Deduplicated and Mapped");
         values.add(Long.toString(n_bases_mapped));
         names.add("Known Sites");
-        values.add(Long.toString(referencePanelSite.n_known_sites));
+        values.add(Long.toString(n_known_sites));
         names.add("Known Sites Covered");
-        values.add(Long.toString(referencePanelSite.n_known_sites_covered));
+        values.add(Long.toString(n_known_sites_covered));
         names.add("Effective Coverage");
-        values.add(StatsUtils.realFormat(referencePanelSite.getEffectiveCoverage(), 2));
+        values.add(StatsUtils.realFormat(ReferencePanelSite.getEffectiveCoverage(n_known_sites, n_known_sites_covered), 2));
+        for (int p = 0; panels != null && p < panels.size(); p++) {
+            names.add("Known Sites (" + panels.names[p] + ")");
+            values.add(Long.toString(panels.knownSites[p]));
+            names.add("Known Sites Covered (" + panels.names[p] + ")");
+            values.add(Long.toString(panels.knownSitesCovered[p]));
+            names.add("Effective Coverage (" + panels.names[p] + ")");
+            values.add(StatsUtils.realFormat(panels.getEffectiveCoverage(p), 2));
+        }
         names.add("Average Depth");
         values.add(StatsUtils.divide(n_bases_mapped, referenceLength));
         names.add("Coverage 1X");
         values.add(StatsUtils.divide(n_sites_covered, referenceLength));
+        if (depth) {
+            names.add("Coverage 2X");
+            values.add(StatsUtils.divide(bases_at_least(2), referenceLength));
+            names.add("Coverage 5X");
+            values.add(StatsUtils.divide(bases_at_least(5), referenceLength));
+        }
+        for (int j = 0; tiers != null && j < tiers.size(); j++) {
+            names.add("Bases Mapped (" + tiers.label(j) + ")");
+            values.add(Long.toString(tiers.basesMapped[j]));
+            names.add("Known Sites Covered (" + tiers.label(j) + ")");
+            values.add(Long.toString(tiers.knownSitesCovered[j]));
+            names.add("Effective Coverage (" + tiers.label(j) + ")");
+            values.add(StatsUtils.realFormat(ReferencePanelSite.getEffectiveCoverage(n_known_sites, tiers.knownSitesCovered[j]), 2));
+            names.add("Coverage 1X (" + tiers.label(j) + ")");
+            values.add(StatsUtils.divide(tiers.basesCovered[j], referenceLength));
+        }
         names.add("Mapping Rate");
         values.add(StatsUtils.divide(alignedReads, totalReads));
         names.add("Duplication Rate");
@@ -212,31 +1425,77 @@ public class BamStats {
         fileWritter.write(REPORT_HEADER + appVersion + "\n");
         fileWritter.write(getReport());
         fileWritter.close();
+        if (depthHistogram != null) writeDepthHistogram(depthHistogram);
+        if (binProfile != null) writeBinProfile(binProfile);
+        if (readGroupStats != null && group_stats != null) group_stats.write(readGroupStats, n_known_sites);
     }
 
-    public void count_coverage(boolean[] coverage){
-        for (boolean b : coverage) if (b) n_sites_covered++;
+    private long bases_at_least(int d) {
+        long n = 0;
+        for (int i = d; i < depth_bases.length; i++) n += depth_bases[i];
+        return n;
     }
 
-    public double count_coverage_chrY(boolean[] coverage){
-        int n_sites_covered_chrY = 0;
-        int chrY_size = coverage.length;
-        int i=0;
-        while (i < chrY_size) {
-            if (coverage[i]) n_sites_covered_chrY++;
-            i++;
+    /**
+     * Bases of the genome at each depth and the fraction covered at least that deep.
+     */
+    public void writeDepthHistogram(String outfile) throws IOException {
+        int max = depth_bases.length - 1;
+        while (max > 0 && depth_bases[max] == 0) max--;
+        try (PrintWriter out = new PrintWriter(new FileWriter(outfile, false))) {
+            out.println("#depth\tbases\tcoverage");
+            for (int d = 0; d <= max; d++) {
+                String label = d == DepthProfile.MAX_DEPTH ? d + "+" : Integer.toString(d);
+                out.println(label + "\t" + depth_bases[d] + "\t"
+                        + StatsUtils.realFormat((double) bases_at_least(d) / referenceLength, 6));
+            }
         }
-        return (double)n_sites_covered_chrY / chrY_size;
     }
 
-    public double count_coverage_chrY_humam(boolean[] coverage){
-        int n_sites_covered_chrY = 0;
-        int chrY_size = coverage.length;
-        int i=2781479;
-        while (i < chrY_size - 330000) {
-            if (coverage[i]) n_sites_covered_chrY++;
-            i++;
+    /**
+     * Mean depth and covered fraction of fixed-size bins along every contig of the header,
+     * with 0-based half-open coordinates.
+     */
+    public void writeBinProfile(String outfile) throws IOException {
+        Map<String, List<DepthProfile>> profiles = new HashMap<>();
+        for (ContigStats contig : contigs) {
+            if (contig.depth != null) profiles.computeIfAbsent(contig.name, k -> new ArrayList<>()).add(contig.depth);
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(outfile, false))) {
+            out.println("#chrom\tstart\tend\tmean_depth\tcoverage");
+            for (SAMSequenceRecord seq : dict.getSequences()) {
+                List<DepthProfile> parts = profiles.getOrDefault(seq.getSequenceName(), new ArrayList<>());
+                long len = seq.getSequenceLength();
+                for (int i = 0; (long) i * binSize < len; i++) {
+                    long start = (long) i * binSize;
+                    long end = Math.min(start + binSize, len);
+                    long depth_sum = 0;
+                    long covered = 0;
+                    for (DepthProfile part : parts) {
+                        depth_sum += part.binDepth(i);
+                        covered += part.binCovered(i);
+                    }
+                    out.println(seq.getSequenceName() + "\t" + start + "\t" + end + "\t"
+                            + StatsUtils.realFormat((double) depth_sum / (end - start), 4) + "\t"
+                            + StatsUtils.realFormat((double) covered / (end - start), 4));
+                }
+            }
         }
+    }
+
+    public void count_coverage(CoverageBitmap coverage){
+        n_sites_covered += coverage.cardinality();
+    }
+
+    public double count_coverage_chrY(CoverageBitmap coverage){
+        long n_sites_covered_chrY = coverage.cardinality();
+        long chrY_size = coverage.length();
+        return (double)n_sites_covered_chrY / chrY_size;
+    }
+
+    public double count_coverage_chrY_humam(CoverageBitmap coverage){
+        long chrY_size = coverage.length();
+        long n_sites_covered_chrY = coverage.cardinality(2781479, chrY_size - 330000);
         return (double)n_sites_covered_chrY / (chrY_size-2781479-330000);
     }
 }
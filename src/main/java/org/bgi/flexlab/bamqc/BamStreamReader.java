@@ -0,0 +1,309 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BufferedLineReader;
+import org.bgi.flexlab.bamqc.util.ParallelBgzfInputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Forward-only BAM reader on top of {@link ParallelBgzfInputStream}, so that inflating the
+ * blocks runs on worker threads while the calling thread decodes and counts records.
+ *
+ * Records are read either as full SAMRecords through {@link #iterator()} or, without any
+ * allocation, as the fixed fields and CIGAR of a {@link BamRecord} through {@link #next(BamRecord)};
+ * a reader is used in one of the two ways only.
+ *
+ * Both BGZF and uncompressed BAM are read, told apart by their first bytes, so the input
+ * can be a pipe from an aligner or sorter that never touches the disk.
+ */
+public class BamStreamReader implements Iterable<SAMRecord>, BamRecord.Source, Closeable {
+    final private static byte[] BAM_MAGIC = {'B', 'A', 'M', 1};
+    final private static int FIXED_LENGTH = 32;
+
+    private final ParallelBgzfInputStream bgzf;
+    private final InputStream data;
+    private final DataInputStream in;
+    private final SAMFileHeader header;
+    private final BAMRecordCodec codec;
+    private final byte[] fixed = new byte[FIXED_LENGTH];
+    private byte[] buf = new byte[1024];
+    private ReadGroups readGroups = null;
+
+    public BamStreamReader(InputStream input, int threads) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(input, 1 << 20);
+        buffered.mark(BAM_MAGIC.length);
+        byte[] magic = new byte[BAM_MAGIC.length];
+        int n = 0;
+        while (n < magic.length) {
+            int k = buffered.read(magic, n, magic.length - n);
+            if (k < 0) break;
+            n += k;
+        }
+        buffered.reset();
+        if (n >= 2 && (magic[0] & 0xff) == 31 && (magic[1] & 0xff) == 139) {
+            bgzf = new ParallelBgzfInputStream(buffered, Math.max(1, threads));
+            data = bgzf;
+        } else {
+            // uncompressed BAM, the magic is checked with the header
+            bgzf = null;
+            data = buffered;
+        }
+        in = new DataInputStream(data);
+        header = read_header();
+        codec = new BAMRecordCodec(header);
+        codec.setInputStream(data);
+    }
+
+    public BamStreamReader(String bamFile, int threads) throws IOException {
+        this(new FileInputStream(bamFile), threads);
+    }
+
+    private BamStreamReader(ParallelBgzfInputStream bgzf, SAMFileHeader header) {
+        this.bgzf = bgzf;
+        this.data = bgzf;
+        this.in = new DataInputStream(bgzf);
+        this.header = header;
+        this.codec = new BAMRecordCodec(header);
+        codec.setInputStream(bgzf);
+    }
+
+    /**
+     * Open a BGZF compressed BAM file at the record starting at the given virtual offset.
+     */
+    public static BamStreamReader open(String bamFile, int threads, long virtualOffset) throws IOException {
+        SAMFileHeader header;
+        try (BamStreamReader reader = new BamStreamReader(bamFile, 1)) {
+            if (reader.bgzf == null) throw new IOException(bamFile + " is not BGZF compressed");
+            header = reader.getFileHeader();
+        }
+        long address = virtualOffset >>> 16;
+        FileInputStream file = new FileInputStream(bamFile);
+        file.getChannel().position(address);
+        ParallelBgzfInputStream bgzf = new ParallelBgzfInputStream(
+                new BufferedInputStream(file, 1 << 20), Math.max(1, threads), address);
+        BamStreamReader reader = new BamStreamReader(bgzf, header);
+        reader.skip_fully(virtualOffset & 0xffff);
+        return reader;
+    }
+
+    private int read_int() throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private SAMFileHeader read_header() throws IOException {
+        byte[] magic = new byte[BAM_MAGIC.length];
+        int n = 0;
+        while (n < magic.length) {
+            int k = in.read(magic, n, magic.length - n);
+            if (k < 0) break;
+            n += k;
+        }
+        if (n == 0) throw new EOFException("empty input");
+        if (!Arrays.equals(magic, BAM_MAGIC)) throw new IOException("not a BAM file");
+        try {
+            return read_header_text();
+        } catch (EOFException e) {
+            throw new EOFException("truncated BAM header");
+        }
+    }
+
+    private SAMFileHeader read_header_text() throws IOException {
+        byte[] text = new byte[read_int()];
+        in.readFully(text);
+        SAMFileHeader header = new SAMTextHeaderCodec().decode(
+                BufferedLineReader.fromString(new String(text, StandardCharsets.UTF_8)), null);
+
+        // the binary reference list is authoritative, the text may lack the @SQ lines
+        int n_ref = read_int();
+        SAMSequenceDictionary dict = new SAMSequenceDictionary();
+        for (int i = 0; i < n_ref; i++) {
+            byte[] name = new byte[read_int()];
+            in.readFully(name);
+            String chr = new String(name, 0, name.length - 1, StandardCharsets.UTF_8);
+            int len = read_int();
+            SAMSequenceRecord seq = header.getSequence(chr);
+            dict.addSequence(seq != null ? seq : new SAMSequenceRecord(chr, len));
+        }
+        header.setSequenceDictionary(dict);
+        return header;
+    }
+
+    public SAMFileHeader getFileHeader() {
+        return header;
+    }
+
+    /**
+     * Decode the RG tag of the records into their read group, null to skip the tags.
+     */
+    public void setReadGroups(ReadGroups readGroups) {
+        this.readGroups = readGroups;
+    }
+
+    /**
+     * BGZF virtual offset of the next record, -1 for an uncompressed BAM.
+     */
+    public long getFilePointer() throws IOException {
+        return bgzf == null ? -1 : bgzf.getFilePointer();
+    }
+
+    /**
+     * Time spent inflating the BGZF blocks on the worker threads, 0 for uncompressed input.
+     */
+    public long getInflateNanos() {
+        return bgzf == null ? 0 : bgzf.getInflateNanos();
+    }
+
+    /**
+     * Time the reading thread waited for inflated blocks.
+     */
+    public long getWaitNanos() {
+        return bgzf == null ? 0 : bgzf.getWaitNanos();
+    }
+
+    private static int int32(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+
+    private static int uint16(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+    }
+
+    private void skip_fully(long n) throws IOException {
+        while (n > 0) {
+            // pipes cannot seek, an uncompressed stream is read through
+            long k = bgzf != null ? bgzf.skip(n) : data.read(buffer(1024), 0, (int) Math.min(n, buf.length));
+            if (k <= 0) throw new EOFException("truncated BAM record");
+            n -= k;
+        }
+    }
+
+    private byte[] buffer(int n) {
+        if (buf.length < n) buf = new byte[Math.max(n, buf.length * 2)];
+        return buf;
+    }
+
+    /**
+     * Decode the next record into the given one, reading the fixed fields and the CIGAR only;
+     * the read name, sequence, qualities and tags are skipped in the decompressed blocks.
+     *
+     * @return false at the end of the file
+     */
+    @Override
+    public boolean next(BamRecord record) throws IOException {
+        record.filePointer = getFilePointer();
+        int b = data.read();
+        if (b < 0) return false;
+        fixed[0] = (byte) b;
+        in.readFully(fixed, 1, 3);
+        int block_size = int32(fixed, 0);
+        in.readFully(fixed, 0, FIXED_LENGTH);
+        int l_read_name = fixed[8] & 0xff;
+        int n_cigar_op = uint16(fixed, 12);
+        int l_seq = int32(fixed, 16);
+        record.referenceIndex = int32(fixed, 0);
+        record.alignmentStart = int32(fixed, 4) + 1;
+        record.flags = uint16(fixed, 14);
+        record.mappingQuality = fixed[9] & 0xff;
+        record.readLength = l_seq;
+        record.mateReferenceIndex = int32(fixed, 20);
+        record.mateAlignmentStart = int32(fixed, 24) + 1;
+
+        skip_fully(l_read_name);
+        byte[] ops = buffer(n_cigar_op * 4);
+        in.readFully(ops, 0, n_cigar_op * 4);
+        record.ensureCigar(n_cigar_op);
+        for (int i = 0; i < n_cigar_op; i++) record.cigar[i] = int32(ops, i * 4);
+        record.cigarLength = n_cigar_op;
+
+        int rest = block_size - FIXED_LENGTH - l_read_name - n_cigar_op * 4;
+        if (rest < 0) throw new IOException("invalid BAM record of " + block_size + " bytes");
+        // more than 65535 operations, the real CIGAR is in the CG tag
+        boolean long_cigar = n_cigar_op == 2 && record.cigar[0] == (l_seq << 4 | BamRecord.CIGAR_S)
+                && (record.cigar[1] & 0xf) == BamRecord.CIGAR_N;
+        if (long_cigar || readGroups != null) {
+            byte[] tail = buffer(rest);
+            in.readFully(tail, 0, rest);
+            int seq_bytes = (l_seq + 1) / 2 + l_seq;
+            if (long_cigar) read_cg_tag(record, tail, seq_bytes, rest);
+            if (readGroups != null) record.readGroup = read_group(tail, seq_bytes, rest);
+        } else {
+            skip_fully(rest);
+        }
+        record.alignmentEnd = record.computeAlignmentEnd();
+        return true;
+    }
+
+    private static void read_cg_tag(BamRecord record, byte[] aux, int off, int end) throws IOException {
+        int t = find_tag(aux, off, end, 'C', 'G');
+        if (t < 0 || aux[t] != 'B' || (aux[t + 1] != 'I' && aux[t + 1] != 'i')) return;
+        int count = int32(aux, t + 2);
+        record.ensureCigar(count);
+        for (int i = 0; i < count; i++) record.cigar[i] = int32(aux, t + 6 + i * 4);
+        record.cigarLength = count;
+    }
+
+    private int read_group(byte[] aux, int off, int end) throws IOException {
+        int t = find_tag(aux, off, end, 'R', 'G');
+        if (t < 0 || aux[t] != 'Z') return readGroups.unknown();
+        int from = t + 1;
+        int to = from;
+        while (to < end && aux[to] != 0) to++;
+        return readGroups.resolve(aux, from, to - from);
+    }
+
+    /**
+     * Offset of the type of the first tag with the given name, -1 when the record has none.
+     */
+    private static int find_tag(byte[] aux, int off, int end, char a, char b) throws IOException {
+        while (off + 3 <= end) {
+            if (aux[off] == a && aux[off + 1] == b) return off + 2;
+            char type = (char) aux[off + 2];
+            off += 3;
+            switch (type) {
+                case 'A': case 'c': case 'C': off += 1; break;
+                case 's': case 'S': off += 2; break;
+                case 'i': case 'I': case 'f': off += 4; break;
+                case 'Z': case 'H':
+                    while (off < end && aux[off] != 0) off++;
+                    off++;
+                    break;
+                case 'B':
+                    char sub = (char) aux[off];
+                    int count = int32(aux, off + 1);
+                    off += 5 + count * (sub == 'c' || sub == 'C' ? 1 : sub == 's' || sub == 'S' ? 2 : 4);
+                    break;
+                default:
+                    throw new IOException("invalid BAM tag type " + type);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Iterator<SAMRecord> iterator() {
+        return new Iterator<SAMRecord>() {
+            SAMRecord next = codec.decode();
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public SAMRecord next() {
+                if (next == null) throw new NoSuchElementException();
+                SAMRecord read = next;
+                next = codec.decode();
+                return read;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+    }
+}
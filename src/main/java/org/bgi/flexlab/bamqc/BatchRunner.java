@@ -0,0 +1,108 @@
+package org.bgi.flexlab.bamqc;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the samples of a manifest against one shared, preloaded reference panel.
+ *
+ * Up to the given number of samples run at the same time, as long as their coverage
+ * buffers fit into the memory budget. Samples are admitted in manifest order, so a
+ * large one waits for memory instead of being overtaken by smaller ones forever.
+ */
+public class BatchRunner {
+    // budget accounting unit, keeps the permits of the semaphore within an int
+    final private static long BUDGET_UNIT = 1L << 20;
+
+    private final Options options;
+    private final ReferencePanelSite panel;
+    private final Semaphore budget;
+    private final int budget_units;
+
+    public BatchRunner(Options options, ReferencePanelSite panel) {
+        this.options = options;
+        this.panel = panel;
+        this.budget_units = (int) Math.max(1, Math.min(Integer.MAX_VALUE, options.getMemoryBudget() / BUDGET_UNIT));
+        this.budget = new Semaphore(budget_units, true);
+    }
+
+    private static List<String[]> read_manifest(String manifest) throws IOException {
+        List<String[]> samples = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(manifest));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] field = line.split("\t");
+            if (field.length != 2) {
+                System.err.println("[ERROR] bad manifest line, expect <bam>\\t<report>: " + line);
+                System.exit(1);
+            }
+            samples.add(field);
+        }
+        reader.close();
+        return samples;
+    }
+
+    /**
+     * @return the number of samples that failed
+     */
+    public int run() throws IOException {
+        List<String[]> samples = read_manifest(options.getManifest());
+        System.err.println("Loading reference panel ...");
+        panel.preload();
+
+        ExecutorService pool = Executors.newFixedThreadPool(options.getJobs());
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (String[] sample : samples) {
+            results.add(pool.submit(() -> run_sample(sample[0], sample[1])));
+        }
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                if (!results.get(i).get()) failed++;
+            } catch (Exception e) {
+                System.err.println("[ERROR] " + samples.get(i)[0] + ": " + e.getMessage());
+                failed++;
+            }
+        }
+        pool.shutdown();
+        System.err.println("Batch finished: " + (samples.size() - failed) + " done, " + failed + " failed");
+        return failed;
+    }
+
+    private boolean run_sample(String bam, String report) {
+        try {
+            process(bam, report, panel);
+            return true;
+        } catch (Exception e) {
+            System.err.println("[ERROR] " + bam + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Run one sample against the given panel once its coverage buffer fits into the memory budget.
+     * Errors of the sample are thrown instead of exiting, so the other samples go on.
+     */
+    void process(String bam, String report, ReferencePanelSite panel) throws Exception {
+        BamStats bamStats = Main.createBamStats(options, bam, panel);
+        bamStats.setExitOnError(false);
+        int units = (int) Math.min(budget_units, (bamStats.coverageBufferBytes() + BUDGET_UNIT - 1) / BUDGET_UNIT);
+        budget.acquire(units);
+        try {
+            System.err.println("Processing sample: " + bam);
+            bamStats.run();
+            bamStats.writeReport(report, options.getAppVersion());
+        } finally {
+            budget.release(units);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.bgi.flexlab.bamqc;
+
+import org.bgi.flexlab.bamqc.util.DepthProfile;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Partial results of a run saved at a contig boundary, so that a run killed halfway
+ * resumes from the last finished contig instead of from the start of the BAM.
+ *
+ * <pre>
+ * magic "BQCK", int version
+ * UTF bam, long bam length, long bam mtime, UTF settings, UTF mode, long position
+ * the read counters, the known site tallies, the counted contigs
+ * int n_contigs x { UTF name, long length, long readBases, long basesMapped, long sitesCovered,
+ *                   boolean visited, boolean depth, [depth profile] }
+ * </pre>
+ * The position is the BGZF virtual offset of the next record for a single pass, or the
+ * index of the next shard for a sharded run. A checkpoint is only taken up when the BAM,
+ * the settings that change the counts and the mode are the same.
+ */
+public class Checkpoint {
+    final private static byte[] MAGIC = {'B', 'Q', 'C', 'K'};
+    final private static int VERSION = 1;
+
+    /**
+     * Replace the checkpoint file with the state of the given run.
+     */
+    public static void write(BamStats stats, String path, String bam, String mode, long position) throws IOException {
+        File file = new File(path).getAbsoluteFile();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            File bam_file = new File(bam);
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(bam_file.getAbsolutePath());
+            out.writeLong(bam_file.length());
+            out.writeLong(bam_file.lastModified());
+            out.writeUTF(stats.settings() + ",shardSize=" + stats.getShardSize());
+            out.writeUTF(mode);
+            out.writeLong(position);
+
+            out.writeLong(stats.totalReads);
+            out.writeLong(stats.totalBases);
+            out.writeLong(stats.alignedReads);
+            out.writeLong(stats.duplicatedReads);
+            out.writeLong(stats.numSecondaryAlignments);
+            out.writeLong(stats.n_known_sites);
+            out.writeLong(stats.n_known_sites_covered);
+            out.writeInt(stats.counted_chroms.size());
+            for (String chr : stats.counted_chroms) out.writeUTF(chr);
+
+            out.writeInt(stats.contigs.size());
+            for (ContigStats contig : stats.contigs) {
+                out.writeUTF(contig.name);
+                out.writeLong(contig.length);
+                out.writeLong(contig.readBases);
+                out.writeLong(contig.basesMapped);
+                out.writeLong(contig.sitesCovered);
+                out.writeBoolean(contig.visited);
+                out.writeBoolean(contig.depth != null);
+                if (contig.depth != null) contig.depth.write(out);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restore the state of a run from the checkpoint file.
+     *
+     * @return the position to go on from
+     */
+    public static long read(BamStats stats, String path, String bam, String mode) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(path + " is not a bamqc checkpoint");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported checkpoint version " + version + " in " + path);
+            File bam_file = new File(bam);
+            if (!in.readUTF().equals(bam_file.getAbsolutePath()) || in.readLong() != bam_file.length()
+                    || in.readLong() != bam_file.lastModified())
+                throw new IOException(path + " was written for another BAM");
+            if (!in.readUTF().equals(stats.settings() + ",shardSize=" + stats.getShardSize()))
+                throw new IOException(path + " was written with other settings");
+            String saved_mode = in.readUTF();
+            if (!saved_mode.equals(mode))
+                throw new IOException(path + " was written by a " + saved_mode + " run, this one is " + mode);
+            long position = in.readLong();
+
+            stats.totalReads = in.readLong();
+            stats.totalBases = in.readLong();
+            stats.alignedReads = in.readLong();
+            stats.duplicatedReads = in.readLong();
+            stats.numSecondaryAlignments = in.readLong();
+            stats.n_known_sites = in.readLong();
+            stats.n_known_sites_covered = in.readLong();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) stats.counted_chroms.add(in.readUTF());
+
+            n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                ContigStats contig = new ContigStats(in.readUTF(), in.readLong());
+                contig.readBases = in.readLong();
+                contig.basesMapped = in.readLong();
+                contig.sitesCovered = in.readLong();
+                contig.visited = in.readBoolean();
+                if (in.readBoolean()) contig.depth = DepthProfile.read(in);
+                stats.contigs.add(contig);
+            }
+            return position;
+        }
+    }
+}
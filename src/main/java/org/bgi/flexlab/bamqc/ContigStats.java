@@ -0,0 +1,51 @@
+package org.bgi.flexlab.bamqc;
+
+import org.bgi.flexlab.bamqc.util.CoverageRuns;
+import org.bgi.flexlab.bamqc.util.DepthProfile;
+
+/**
+ * Raw counters of one contig, kept in the order the contigs were visited so the
+ * chrX/chrY depth can be derived the same way whether the BAM was read in one pass
+ * or in shards.
+ */
+public class ContigStats {
+    final String name;
+    final long length;
+    // bases of every record placed on this contig (secondary and unmapped included)
+    long readBases = 0;
+    long basesMapped = 0;
+    long sitesCovered = 0;
+    boolean visited = false;
+    // depth distribution and bins, only when asked for
+    DepthProfile depth = null;
+    // covered bases, only when the coverage is saved or topped up
+    CoverageRuns runs = null;
+
+    public ContigStats(String name, long length) {
+        this.name = name;
+        this.length = length;
+    }
+
+    public void add(ContigStats other) {
+        readBases += other.readBases;
+        basesMapped += other.basesMapped;
+        sitesCovered += other.sitesCovered;
+        visited |= other.visited;
+        if (other.depth != null) {
+            if (depth == null) depth = new DepthProfile(1, length, other.depth.binSize());
+            depth.add(other.depth);
+        }
+        if (other.runs != null) {
+            if (runs == null) runs = new CoverageRuns();
+            runs.addAll(other.runs);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
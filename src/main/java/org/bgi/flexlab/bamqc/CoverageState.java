@@ -0,0 +1,126 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import org.bgi.flexlab.bamqc.util.CoverageRuns;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The covered bases and raw counters of a sample, saved next to its report so that a top-up
+ * lane is counted on its own and ORed in, giving the report of all the data without reading
+ * the earlier BAMs again.
+ *
+ * <pre>
+ * magic "BQCS", int version, UTF settings
+ * int n_contigs x { UTF name, int length }
+ * long totalReads, long totalBases, long alignedReads, long duplicatedReads, long numSecondaryAlignments
+ * int n_visited x { UTF name, long length, long readBases, long basesMapped, boolean visited, runs }
+ * </pre>
+ * The visited contigs are in visiting order and the runs are varint gaps and lengths.
+ */
+public class CoverageState {
+    final private static byte[] MAGIC = {'B', 'Q', 'C', 'S'};
+    final private static int VERSION = 1;
+
+    final String settings;
+    final SAMSequenceDictionary dict;
+    long totalReads;
+    long totalBases;
+    long alignedReads;
+    long duplicatedReads;
+    long numSecondaryAlignments;
+    final List<ContigStats> contigs;
+
+    CoverageState(String settings, SAMSequenceDictionary dict, List<ContigStats> contigs) {
+        this.settings = settings;
+        this.dict = dict;
+        this.contigs = contigs;
+    }
+
+    /**
+     * Contigs visited more than once, as by an unsorted BAM, are added up into their first visit.
+     */
+    static List<ContigStats> by_name(List<ContigStats> contigs) {
+        Map<String, ContigStats> merged = new LinkedHashMap<>();
+        for (ContigStats contig : contigs) {
+            ContigStats first = merged.get(contig.name);
+            if (first == null) {
+                first = new ContigStats(contig.name, contig.length);
+                first.runs = new CoverageRuns();
+                merged.put(contig.name, first);
+            }
+            first.add(contig);
+        }
+        for (ContigStats contig : merged.values()) contig.sitesCovered = contig.runs.cardinality();
+        return new ArrayList<>(merged.values());
+    }
+
+    public void write(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(settings);
+            out.writeInt(dict.size());
+            for (SAMSequenceRecord seq : dict.getSequences()) {
+                out.writeUTF(seq.getSequenceName());
+                out.writeInt(seq.getSequenceLength());
+            }
+            out.writeLong(totalReads);
+            out.writeLong(totalBases);
+            out.writeLong(alignedReads);
+            out.writeLong(duplicatedReads);
+            out.writeLong(numSecondaryAlignments);
+            out.writeInt(contigs.size());
+            for (ContigStats contig : contigs) {
+                out.writeUTF(contig.name);
+                out.writeLong(contig.length);
+                out.writeLong(contig.readBases);
+                out.writeLong(contig.basesMapped);
+                out.writeBoolean(contig.visited);
+                contig.runs.write(out);
+            }
+        }
+    }
+
+    public static CoverageState read(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(path + " is not a bamqc coverage file");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported coverage file version " + version + " in " + path);
+            String settings = in.readUTF();
+            SAMSequenceDictionary dict = new SAMSequenceDictionary();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) dict.addSequence(new SAMSequenceRecord(in.readUTF(), in.readInt()));
+            long[] counters = new long[5];
+            for (int i = 0; i < counters.length; i++) counters[i] = in.readLong();
+            n = in.readInt();
+            List<ContigStats> contigs = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                ContigStats contig = new ContigStats(in.readUTF(), in.readLong());
+                contig.readBases = in.readLong();
+                contig.basesMapped = in.readLong();
+                contig.visited = in.readBoolean();
+                contig.runs = CoverageRuns.read(in);
+                contig.sitesCovered = contig.runs.cardinality();
+                contigs.add(contig);
+            }
+            CoverageState state = new CoverageState(settings, dict, contigs);
+            state.totalReads = counters[0];
+            state.totalBases = counters[1];
+            state.alignedReads = counters[2];
+            state.duplicatedReads = counters[3];
+            state.numSecondaryAlignments = counters[4];
+            return state;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.bgi.flexlab.bamqc;
+
+import java.util.Arrays;
+
+/**
+ * Finds duplicates while a coordinate sorted BAM streams by, for BAMs that were never duplicate
+ * marked. A primary alignment is a duplicate of an earlier one with the same unclipped 5' end
+ * and strand and, for a pair with both ends mapped, the same mate contig, start and strand.
+ * The counts approximate MarkDuplicates, which also takes a single read or an end with its mate
+ * unmapped for a duplicate of a pair end, keys the mate by its unclipped 5' end from the MC tag
+ * rather than its aligned start, and keeps libraries apart. The first alignment of a key is
+ * kept rather than the best by quality, so the coverage may also differ by which copy is kept.
+ *
+ * The keys live in an open addressing table of two longs per key. Unclipped ends more than
+ * {@link #WINDOW} bases behind the reads can no longer be matched and are dropped in place as
+ * the reads move on, so the table holds a few windows of reads whatever the size of the BAM and
+ * is only allocated again when its capacity changes.
+ *
+ * Reads already flagged as duplicates stay so and are not keys. Secondary and supplementary
+ * alignments are left as they are.
+ */
+public class DuplicateFinder {
+    /**
+     * Longest 5' clip whose duplicates are found, a shard starts its reads this far ahead.
+     */
+    final static int WINDOW = 1000;
+    final static int MIN_CAPACITY = 1 << 10;
+
+    // key halves, the first one never 0 so that 0 marks an empty slot
+    private long[] first = new long[MIN_CAPACITY];
+    private long[] second = new long[MIN_CAPACITY];
+    private int size = 0;
+    private int reference = -1;
+    private int last_start = 0;
+    private int next_sweep = 0;
+    private boolean sorted = true;
+
+    /**
+     * Whether the read is a duplicate, flagged or of an earlier read.
+     */
+    public boolean isDuplicate(BamRecord read) {
+        if (read.getDuplicateReadFlag()) return true;
+        if (!read.isPlaced() || read.isSecondaryOrSupplementary()) return false;
+        advance(read.getReferenceIndex(), read.getAlignmentStart());
+        boolean reverse = read.getReadNegativeStrandFlag();
+        long key1 = (long) unclipped_five_prime(read, reverse) << 3 | (reverse ? 4 : 0) | 1;
+        long key2 = 0;
+        if (read.getReadPairedFlag() && !read.getMateUnmappedFlag() && read.getMateReferenceIndex() >= 0) {
+            key1 |= 2;
+            key2 = (long) read.getMateReferenceIndex() << 33 | ((long) read.getMateAlignmentStart() & 0xffffffffL) << 1
+                    | (read.getMateNegativeStrandFlag() ? 1 : 0);
+        }
+        return !add(key1, key2);
+    }
+
+    /**
+     * False once a read started before the one ahead of it, the duplicates being unreliable from there on.
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    private static int unclipped_five_prime(BamRecord read, boolean reverse) {
+        int clipped = 0;
+        if (reverse) {
+            for (int i = read.cigarLength - 1; i >= 0 && BamRecord.isClipped(read.cigar[i] & 0xf); i--)
+                clipped += read.cigar[i] >>> 4;
+            return read.getAlignmentEnd() + clipped;
+        }
+        for (int i = 0; i < read.cigarLength && BamRecord.isClipped(read.cigar[i] & 0xf); i++)
+            clipped += read.cigar[i] >>> 4;
+        return read.getAlignmentStart() - clipped;
+    }
+
+    private void advance(int ref, int start) {
+        if (ref != reference) {
+            if (size > 0) {
+                Arrays.fill(first, 0);
+                size = 0;
+            }
+            reference = ref;
+            next_sweep = start + WINDOW;
+        } else if (start < last_start) {
+            sorted = false;
+        } else if (start >= next_sweep) {
+            expire(start - WINDOW);
+            // a table at most an eighth full is halved
+            if (first.length > MIN_CAPACITY && size * 8 < first.length) rebuild(first.length, start - WINDOW);
+            next_sweep = start + WINDOW;
+        }
+        last_start = start;
+    }
+
+    /**
+     * @return false when the key was there already
+     */
+    private boolean add(long key1, long key2) {
+        int mask = first.length - 1;
+        int i = slot(key1, key2, mask);
+        while (first[i] != 0) {
+            if (first[i] == key1 && second[i] == key2) return false;
+            i = (i + 1) & mask;
+        }
+        first[i] = key1;
+        second[i] = key2;
+        if (++size * 2 > first.length) rebuild(first.length * 2, last_start - WINDOW);
+        return true;
+    }
+
+    /**
+     * Remove the keys whose unclipped end is before the given position, shifting the keys behind
+     * each one back so that no probe sequence is broken.
+     */
+    private void expire(long keep_from) {
+        int mask = first.length - 1;
+        // the table is at most half full; a scan from an empty slot sees every run of keys whole
+        int empty = 0;
+        while (first[empty] != 0) empty++;
+        for (int k = 1; k <= mask; k++) {
+            int i = (empty + k) & mask;
+            while (first[i] != 0 && first[i] >> 3 < keep_from) remove(i, mask);
+        }
+    }
+
+    private void remove(int i, int mask) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (first[j] == 0) break;
+            // a key moves back unless its home slot lies after the hole
+            int home = slot(first[j], second[j], mask);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                first[i] = first[j];
+                second[i] = second[j];
+                i = j;
+            }
+        }
+        first[i] = 0;
+        size--;
+    }
+
+    /**
+     * Reinsert the keys whose unclipped end is at least the given position into a table of the given capacity.
+     */
+    private void rebuild(int capacity, long keep_from) {
+        long[] old_first = first;
+        long[] old_second = second;
+        int kept = 0;
+        for (long key : old_first) {
+            if (key != 0 && key >> 3 >= keep_from) kept++;
+        }
+        // a table at most a quarter full is halved again
+        while (capacity > MIN_CAPACITY && kept * 4 < capacity / 2) capacity /= 2;
+        first = new long[capacity];
+        second = new long[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < old_first.length; j++) {
+            if (old_first[j] == 0 || old_first[j] >> 3 < keep_from) continue;
+            int i = slot(old_first[j], old_second[j], mask);
+            while (first[i] != 0) i = (i + 1) & mask;
+            first[i] = old_first[j];
+            second[i] = old_second[j];
+        }
+        size = kept;
+    }
+
+    static int slot(long key1, long key2, int mask) {
+        long h = key1 * 0x9E3779B97F4A7C15L + key2 * 0xC2B2AE3D27D4EB4FL;
+        return (int) (h ^ h >>> 29) & mask;
+    }
+}
@@ -0,0 +1,299 @@
+package org.bgi.flexlab.bamqc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the reference panels loaded and runs the samples submitted over HTTP at 127.0.0.1,
+ * so a sample only costs its pass over the BAM, not the JVM start and the panel load.
+ *
+ * POST /jobs?input=BAM&output=REPORT[&panel=NAME] queues a sample and answers its id, the
+ * parameters may also be sent as a form. GET /jobs/ID answers the state of the sample, one of
+ * queued, running, done or failed, and GET /status the counts of the server. Up to the given
+ * number of samples run at the same time, within the memory budget as in a batch, and a fixed
+ * number wait. Beyond that a sample is refused with 503 until there is room again.
+ *
+ * POST /shutdown, or a TERM signal, stops taking samples, waits for the queued and running
+ * ones to finish and exits.
+ */
+public class JobServer {
+    final static String DEFAULT_PANEL = "default";
+    // finished samples whose state can still be asked for
+    final private static int KEEP_FINISHED = 10000;
+
+    private final Options options;
+    private final Map<String, ReferencePanelSite> panels;
+    private final BatchRunner runner;
+    private final ThreadPoolExecutor pool;
+    private final Map<Long, Job> jobs = new ConcurrentHashMap<>();
+    private final ArrayDeque<Long> finished = new ArrayDeque<>();
+    private final AtomicLong next_id = new AtomicLong();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean stopping = false;
+    private HttpServer server;
+
+    private static class Job {
+        final long id;
+        final String input;
+        final String output;
+        final String panel;
+        volatile String state = "queued";
+        volatile String error = null;
+        volatile long seconds = -1;
+
+        Job(long id, String input, String output, String panel) {
+            this.id = id;
+            this.input = input;
+            this.output = output;
+            this.panel = panel;
+        }
+
+        String json() {
+            return "{\"id\": " + id + ", \"state\": \"" + state + "\", \"input\": \"" + RunMetrics.escape(input)
+                    + "\", \"output\": \"" + RunMetrics.escape(output) + "\", \"panel\": \"" + RunMetrics.escape(panel)
+                    + "\", \"seconds\": " + (seconds < 0 ? "null" : seconds)
+                    + ", \"error\": " + (error == null ? "null" : "\"" + RunMetrics.escape(error) + "\"") + "}";
+        }
+    }
+
+    /**
+     * @param panels the panels by name, the first one used when a sample names none
+     */
+    public JobServer(Options options, Map<String, ReferencePanelSite> panels) {
+        this.options = options;
+        this.panels = panels;
+        this.runner = new BatchRunner(options, panels.values().iterator().next());
+        this.pool = new ThreadPoolExecutor(options.getJobs(), options.getJobs(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, options.getQueueSize())));
+    }
+
+    /**
+     * Load the panels, serve until shut down and wait for the samples taken.
+     */
+    public void run() throws IOException, InterruptedException {
+        for (Map.Entry<String, ReferencePanelSite> panel : panels.entrySet()) {
+            System.err.println("Loading reference panel " + panel.getKey() + " ...");
+            panel.getValue().preload();
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), options.getPort()), 0);
+        server.createContext("/jobs", this::handle_jobs);
+        server.createContext("/status", this::handle_status);
+        server.createContext("/shutdown", this::handle_shutdown);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+        System.err.println("Listening on 127.0.0.1:" + server.getAddress().getPort() + " with " + options.getJobs()
+                + " jobs and " + options.getQueueSize() + " queued samples at most");
+        stopped.await();
+    }
+
+    /**
+     * Refuse new samples, finish the ones taken and stop listening. Safe to call more than once.
+     */
+    void shutdown() {
+        synchronized (this) {
+            if (stopping) {
+                if (server != null) awaitStopped();
+                return;
+            }
+            stopping = true;
+        }
+        System.err.println("Shutting down after " + (pool.getQueue().size() + running.get()) + " samples left ...");
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                System.err.println("Waiting for " + (pool.getQueue().size() + running.get()) + " samples ...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (server != null) server.stop(1);
+        System.err.println("Server stopped: " + done.get() + " done, " + failed.get() + " failed");
+        stopped.countDown();
+    }
+
+    private void awaitStopped() {
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run_job(Job job) {
+        job.state = "running";
+        running.incrementAndGet();
+        long start = System.currentTimeMillis();
+        try {
+            runner.process(job.input, job.output, panels.get(job.panel));
+            job.state = "done";
+            done.incrementAndGet();
+        } catch (Throwable e) {
+            System.err.println("[ERROR] " + job.input + ": " + e);
+            job.error = e.getMessage() != null ? e.getMessage() : e.toString();
+            job.state = "failed";
+            failed.incrementAndGet();
+        } finally {
+            job.seconds = (System.currentTimeMillis() - start) / 1000;
+            running.decrementAndGet();
+            forget_finished(job.id);
+        }
+    }
+
+    private void forget_finished(long id) {
+        synchronized (finished) {
+            finished.addLast(id);
+            while (finished.size() > KEEP_FINISHED) jobs.remove(finished.removeFirst());
+        }
+    }
+
+    private void handle_jobs(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        if (path.equals("/jobs") || path.equals("/jobs/")) {
+            if (!method.equals("POST")) {
+                reply(exchange, 405, error("use POST to submit a sample"));
+                return;
+            }
+            submit(exchange);
+            return;
+        }
+        if (!method.equals("GET")) {
+            reply(exchange, 405, error("use GET for the state of a sample"));
+            return;
+        }
+        Job job = null;
+        try {
+            job = jobs.get(Long.parseLong(path.substring("/jobs/".length())));
+        } catch (NumberFormatException ignored) {
+        }
+        if (job == null)
+            reply(exchange, 404, error("no such sample"));
+        else
+            reply(exchange, 200, job.json());
+    }
+
+    private void submit(HttpExchange exchange) throws IOException {
+        Map<String, String> params = parse_params(exchange.getRequestURI().getRawQuery());
+        params.putAll(parse_params(read_body(exchange)));
+        String input = params.get("input");
+        String output = params.get("output");
+        String panel = params.containsKey("panel") ? params.get("panel") : panels.keySet().iterator().next();
+        if (input == null || output == null) {
+            reply(exchange, 400, error("input and output are required"));
+            return;
+        }
+        if (!panels.containsKey(panel)) {
+            reply(exchange, 400, error("no such panel: " + panel));
+            return;
+        }
+        if (stopping) {
+            reply(exchange, 503, error("shutting down"));
+            return;
+        }
+        Job job = new Job(next_id.incrementAndGet(), input, output, panel);
+        jobs.put(job.id, job);
+        try {
+            pool.execute(() -> run_job(job));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            exchange.getResponseHeaders().set("Retry-After", "10");
+            reply(exchange, 503, error(stopping ? "shutting down" : "queue is full"));
+            return;
+        }
+        reply(exchange, 202, job.json());
+    }
+
+    private void handle_status(HttpExchange exchange) throws IOException {
+        StringBuilder names = new StringBuilder();
+        for (String name : panels.keySet()) {
+            if (names.length() > 0) names.append(", ");
+            names.append('"').append(RunMetrics.escape(name)).append('"');
+        }
+        reply(exchange, 200, "{\"state\": \"" + (stopping ? "stopping" : "serving") + "\", \"queued\": " + pool.getQueue().size()
+                + ", \"running\": " + running.get() + ", \"done\": " + done.get() + ", \"failed\": " + failed.get()
+                + ", \"panels\": [" + names + "]}");
+    }
+
+    private void handle_shutdown(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            reply(exchange, 405, error("use POST to shut down"));
+            return;
+        }
+        reply(exchange, 202, "{\"state\": \"stopping\", \"left\": " + (pool.getQueue().size() + running.get()) + "}");
+        // not on the thread of the http server, which has to go on answering while the samples finish
+        new Thread(this::shutdown).start();
+    }
+
+    private static String error(String message) {
+        return "{\"error\": \"" + RunMetrics.escape(message) + "\"}";
+    }
+
+    private static void reply(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String read_body(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try (InputStream in = exchange.getRequestBody()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) body.write(buffer, 0, n);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> parse_params(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String pair : query.trim().split("&")) {
+            if (pair.isEmpty()) continue;
+            int i = pair.indexOf('=');
+            String key = URLDecoder.decode(i < 0 ? pair : pair.substring(0, i), "UTF-8");
+            params.put(key, i < 0 ? "" : URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    /**
+     * The panel of -s as the default one followed by the named ones.
+     */
+    static Map<String, ReferencePanelSite> load_panels(Options options) {
+        Map<String, ReferencePanelSite> panels = new LinkedHashMap<>();
+        panels.put(DEFAULT_PANEL, new ReferencePanelSite(options.getSiteVcfList()));
+        for (String panel : options.getPanels()) {
+            int i = panel.indexOf('=');
+            panels.put(panel.substring(0, i), new ReferencePanelSite(panel.substring(i + 1)));
+        }
+        return panels;
+    }
+}
@@ -6,16 +6,132 @@ import java.io.IOException;
 public class Main {
     public static void main(String[]args){
         Options options = new Options(args);
+        if (options.getCommand().equals(Options.CMD_INDEX)) {
+            index(options);
+            return;
+        }
+        if (options.getCommand().equals(Options.CMD_BATCH)) {
+            batch(options);
+            return;
+        }
+        if (options.getCommand().equals(Options.CMD_MERGE)) {
+            merge(options);
+            return;
+        }
+        if (options.getCommand().equals(Options.CMD_SERVE)) {
+            serve(options);
+            return;
+        }
         ReferencePanelSite rps = new ReferencePanelSite(options.getSiteVcfList());
-        BamStats bamStats = new BamStats(options.getInfile(), rps, options.isCountSecondaryReads());
+        BamStats bamStats = createBamStats(options, options.getInfile(), rps);
+        bamStats.setTee(options.getTee());
+        bamStats.setDepthHistogram(options.getDepthHistogram());
+        bamStats.setBinProfile(options.getBinProfile());
+        bamStats.setReadGroupStats(options.getReadGroupStats());
+        bamStats.setMapqTiers(options.getMapqTiers());
+        bamStats.setSaveCoverage(options.getSaveCoverage());
+        bamStats.setTopUp(options.getTopUp());
+        if (!options.getPanels().isEmpty()) {
+            try {
+                bamStats.setPanels(new PanelSet(options.getPanels()));
+            } catch (IllegalArgumentException e) {
+                System.err.println("[ERROR] " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        bamStats.setCheckpoint(options.getCheckpoint());
+        bamStats.setResume(options.isResume());
+        bamStats.setCheckpointInterval(options.getCheckpointInterval());
+        bamStats.setRegions(options.getRegions());
+        bamStats.setPartial(options.getPartial() != null);
+        bamStats.setQuick(options.isQuick());
+        if (options.isSample())
+            bamStats.setSampler(new RegionSampler(options.getPrecision(), options.getSeed(), options.getWindowSize()));
+        RunMetrics metrics = null;
+        if (options.getMetrics() != null) {
+            metrics = new RunMetrics(options.getMetrics(), options.getInfile());
+            bamStats.setMetrics(metrics);
+            metrics.start(options.getMetricsInterval());
+        }
         System.out.println("Start ...");
         bamStats.run();
         try {
+            if (options.getPartial() != null)
+                bamStats.writePartial(options.getPartial());
+            else
+                bamStats.writeReport(options.getOutfile(), options.getAppVersion());
+            if (options.getSaveCoverage() != null)
+                bamStats.writeCoverage(options.getSaveCoverage());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (metrics != null) metrics.finish();
+        System.out.println("Done");
+    }
+
+    static BamStats createBamStats(Options options, String infile, ReferencePanelSite rps) {
+        BamStats bamStats = new BamStats(infile, rps, options.isCountSecondaryReads());
+        bamStats.setOffHeapCoverage(options.isOffHeapCoverage());
+        bamStats.setThreads(options.getThreads());
+        bamStats.setShardSize(options.getShardSize());
+        bamStats.setStreaming(options.isStreaming());
+        bamStats.setDecompressThreads(options.getDecompressThreads());
+        bamStats.setAsyncIo(options.isAsyncIo());
+        bamStats.setSkipDeletions(options.isSkipDeletions());
+        bamStats.setFindDuplicates(options.isFindDuplicates());
+        bamStats.setDepth(options.isDepth());
+        bamStats.setBinSize(options.getBinSize());
+        return bamStats;
+    }
+
+    private static void index(Options options) {
+        ReferencePanelSite rps = new ReferencePanelSite(options.getSiteVcfList());
+        System.out.println("Start ...");
+        try {
+            SiteIndex.write(rps, options.getOutfile());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println("Done");
+    }
+
+    private static void merge(Options options) {
+        ReferencePanelSite rps = new ReferencePanelSite(options.getSiteVcfList());
+        BamStats bamStats = new BamStats(null, rps, false);
+        bamStats.setDepthHistogram(options.getDepthHistogram());
+        bamStats.setBinProfile(options.getBinProfile());
+        System.out.println("Start ...");
+        try {
+            bamStats.merge(options.getPartialFiles());
             bamStats.writeReport(options.getOutfile(), options.getAppVersion());
+        } catch (IOException e) {
+            System.err.println("[ERROR] " + e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("Done");
+    }
+
+    private static void batch(Options options) {
+        ReferencePanelSite rps = new ReferencePanelSite(options.getSiteVcfList());
+        System.out.println("Start ...");
+        int failed = 0;
+        try {
+            failed = new BatchRunner(options, rps).run();
         } catch (IOException e) {
             e.printStackTrace();
+            System.exit(1);
         }
         System.out.println("Done");
+        if (failed > 0) System.exit(1);
     }
-}
 
+    private static void serve(Options options) {
+        try {
+            new JobServer(options, JobServer.load_panels(options)).run();
+        } catch (IOException | InterruptedException e) {
+            System.err.println("[ERROR] " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
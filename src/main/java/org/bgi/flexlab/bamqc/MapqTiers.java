@@ -0,0 +1,127 @@
+package org.bgi.flexlab.bamqc;
+
+import org.bgi.flexlab.bamqc.util.CoverageSweep;
+import org.bgi.flexlab.bamqc.util.SiteCursor;
+
+/**
+ * Coverage of the reads at or above each of a few MAPQ thresholds, counted in the same pass as
+ * the unfiltered coverage. The tiers are nested: a read at level l, the number of thresholds it
+ * passes, covers the tiers below l. Every tier keeps its own {@link CoverageSweep} resolving the
+ * known sites with a {@link SiteCursor} as its merged intervals go by, so a read updates all of
+ * its tiers from one walk over its CIGAR and no per-base buffer is kept for any tier.
+ *
+ * Like streaming this needs a BAM sorted by coordinate, checked by {@link #finish()}.
+ */
+public class MapqTiers {
+    final int[] thresholds;
+    private final boolean skipDeletions;
+    final long[] basesMapped;
+    final long[] basesCovered;
+    final long[] knownSitesCovered;
+    private final CoverageSweep[] sweeps;
+    private final SiteCursor[] cursors;
+    private long from = 1;
+    private long to = Long.MAX_VALUE;
+    private boolean sorted = true;
+
+    /**
+     * @param thresholds distinct MAPQ thresholds in ascending order
+     */
+    public MapqTiers(int[] thresholds, boolean skipDeletions) {
+        this.thresholds = thresholds;
+        this.skipDeletions = skipDeletions;
+        int n = thresholds.length;
+        basesMapped = new long[n];
+        basesCovered = new long[n];
+        knownSitesCovered = new long[n];
+        sweeps = new CoverageSweep[n];
+        cursors = new SiteCursor[n];
+        for (int j = 0; j < n; j++) sweeps[j] = new CoverageSweep();
+    }
+
+    public int size() {
+        return thresholds.length;
+    }
+
+    /**
+     * Start the range [from, to] of a contig, with its sites or null for none.
+     */
+    public void start(int[] sites, int from, int to) {
+        this.from = from;
+        this.to = to;
+        for (int j = 0; j < sweeps.length; j++) {
+            cursors[j] = sites != null ? new SiteCursor(SiteCursor.of(sites, from, to)) : null;
+            sweeps[j].reset(cursors[j]);
+        }
+    }
+
+    /**
+     * Add a mapped, non duplicate read, to the mapped bases only when counted is set.
+     */
+    public void add(BamRecord read, boolean counted) {
+        int level = 0;
+        while (level < thresholds.length && read.getMappingQuality() >= thresholds[level]) level++;
+        if (level == 0) return;
+        int start = read.getAlignmentStart();
+        int end = read.getAlignmentEnd();
+        if (end < start) return;
+        long first = Math.max(start, from);
+        long mapped;
+        if (!skipDeletions) {
+            mapped = end - start + 1;
+            for (int j = 0; j < level; j++) sweeps[j].add(first, Math.min(end, to));
+        } else {
+            mapped = 0;
+            long pos = start;
+            for (int i = 0; i < read.cigarLength; i++) {
+                int op = read.cigar[i] & 0xf;
+                int len = read.cigar[i] >>> 4;
+                if (BamRecord.isAligned(op)) {
+                    mapped += len;
+                    long s = Math.max(pos, from);
+                    long e = Math.min(pos + len - 1, to);
+                    for (int j = 0; j < level; j++) {
+                        if (s == first) sweeps[j].add(s, e);
+                        else sweeps[j].defer(s, e);
+                    }
+                }
+                if (BamRecord.consumesReference(op)) pos += len;
+            }
+        }
+        if (counted) {
+            for (int j = 0; j < level; j++) basesMapped[j] += mapped;
+        }
+    }
+
+    /**
+     * Add up the range once its reads are done.
+     *
+     * @return false when the reads of the range were not sorted by coordinate
+     */
+    public boolean finish() {
+        for (int j = 0; j < sweeps.length; j++) {
+            sweeps[j].flush();
+            sorted &= sweeps[j].isSorted();
+            basesCovered[j] += sweeps[j].covered();
+            if (cursors[j] != null) {
+                cursors[j].finish();
+                knownSitesCovered[j] += cursors[j].covered();
+                cursors[j] = null;
+            }
+            sweeps[j].reset(null);
+        }
+        return sorted;
+    }
+
+    public void add(MapqTiers other) {
+        for (int j = 0; j < thresholds.length; j++) {
+            basesMapped[j] += other.basesMapped[j];
+            basesCovered[j] += other.basesCovered[j];
+            knownSitesCovered[j] += other.knownSitesCovered[j];
+        }
+    }
+
+    public String label(int j) {
+        return "MAPQ>=" + thresholds[j];
+    }
+}
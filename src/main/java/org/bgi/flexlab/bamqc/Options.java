@@ -4,16 +4,62 @@ import org.apache.commons.cli.*;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
+import java.util.TreeSet;
 
 public class Options {
 
     final String SOFTWARE_NAME = "bamqc";
+    final static String CMD_QC = "qc";
+    final static String CMD_INDEX = "index";
+    final static String CMD_BATCH = "batch";
+    final static String CMD_MERGE = "merge";
+    final static String CMD_SERVE = "serve";
+    private String command = CMD_QC;
     private boolean countSecondaryReads = false;
+    private boolean offHeapCoverage = false;
+    private boolean streaming = false;
+    private int decompressThreads = 0;
+    private boolean asyncIo = false;
+    private boolean skipDeletions = false;
+    private boolean findDuplicates = false;
+    private int threads = 1;
+    private int shardSize = 10000000;
     private String infile;
     private String outfile;
+    private String tee;
+    private boolean depth = false;
+    private int binSize = 100000;
+    private String depthHistogram;
+    private String binProfile;
+    private String readGroupStats;
+    private int[] mapqTiers;
+    private String saveCoverage;
+    private String topUp;
+    private String regions;
+    private String partial;
+    private List<String> partialFiles = new ArrayList<>();
+    private String checkpoint;
+    private boolean resume = false;
+    private int checkpointInterval = 60;
+    private String metrics;
+    private boolean quick = false;
+    private boolean sample = false;
+    private double precision = 0.05;
+    private long seed = 1;
+    private int windowSize = 100000;
+    private int metricsInterval = 10;
     private String siteVcfList;
+    private String manifest;
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+    private int port = 8600;
+    private int queueSize = 256;
+    private List<String> panels = new ArrayList<>();
     private String appVersion;
 
 
@@ -39,39 +85,36 @@ public class Options {
         sb.append("\nCompile Date: ");
         sb.append(compile_date);
         sb.append("\nNote        : BGI-lowpass bam quality control\n");
+        sb.append("\nCommands    : index   compile the site VCF list into a site index for -s");
+        sb.append("\n              batch   run many samples against one panel");
+        sb.append("\n              merge   combine the partial files of runs over parts of a genome into one report");
+        sb.append("\n              serve   keep the panels loaded and run the samples submitted over localhost HTTP\n");
         sb.append("\nOptions:\n");
         return sb.toString();
     }
 
     public void parse(String[] args) {
         setAppVersion();
+        if (args.length > 0 && (args[0].equals(CMD_INDEX) || args[0].equals(CMD_BATCH) || args[0].equals(CMD_MERGE)
+                || args[0].equals(CMD_SERVE))) {
+            command = args[0];
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
         String header = helpHeader();
         String footer = "\nPlease report issues at https://github.com/BGI-flexlab/bamqc/issues";
+        String usage = "java -jar " + SOFTWARE_NAME + ".jar" + (command.equals(CMD_QC) ? "" : " " + command);
+        if (command.equals(CMD_MERGE)) usage += " <partial files>";
 
-        options.addOption(Option.builder("i")
-                .longOpt("input")
-                .required(true)
-                .hasArg()
-                .argName("FILE")
-                .desc("input bam(BAM). [request]")
-                .build());
-        options.addOption(Option.builder("o")
-                .longOpt("output")
-                .hasArg()
-                .argName("String")
-                .desc("report file [request]")
-                .build());
-        options.addOption(Option.builder("s")
-                .longOpt("site")
-                .required(true)
-                .hasArg()
-                .argName("FILE")
-                .desc("reference panel site.vcfs list [request]")
-                .build());
-        options.addOption(Option.builder("c")
-                .longOpt("countSecondaryReads")
-                .desc("The secondary alignment reads are counted and ignored by default [false]")
-                .build());
+        if (command.equals(CMD_INDEX))
+            addIndexOptions();
+        else if (command.equals(CMD_BATCH))
+            addBatchOptions();
+        else if (command.equals(CMD_MERGE))
+            addMergeOptions();
+        else if (command.equals(CMD_SERVE))
+            addServeOptions();
+        else
+            addQcOptions();
         options.addOption(Option.builder("h")
                 .longOpt("help")
                 .desc("Print this help.")
@@ -83,15 +126,17 @@ public class Options {
         try {
             cmdLine = parser.parse(options, args);
             if (cmdLine.hasOption("h")) {
-                formatter.printHelp("java -jar " + SOFTWARE_NAME + ".jar", header, options, footer, true);
+                formatter.printHelp(usage, header, options, footer, true);
                 System.exit(0);
             }
         } catch (ParseException e) {
-            formatter.printHelp("java -jar " + SOFTWARE_NAME + ".jar", header, options, footer, true);
+            formatter.printHelp(usage, header, options, footer, true);
             System.exit(0);
         }
 
-        infile = cmdLine.getOptionValue("input");
+        if (cmdLine.hasOption("input")) {
+            infile = cmdLine.getOptionValue("input");
+        }
 
         if (cmdLine.hasOption("output")) {
             outfile = cmdLine.getOptionValue("output");
@@ -104,6 +149,501 @@ public class Options {
         if (cmdLine.hasOption("c")) {
             countSecondaryReads = cmdLine.hasOption("countSecondaryReads");
         }
+
+        offHeapCoverage = cmdLine.hasOption("offHeap");
+        streaming = cmdLine.hasOption("streaming");
+        asyncIo = cmdLine.hasOption("asyncIo");
+        skipDeletions = cmdLine.hasOption("skipDeletions");
+        findDuplicates = cmdLine.hasOption("findDuplicates");
+        depth = cmdLine.hasOption("depth");
+
+        if (cmdLine.hasOption("binSize")) {
+            binSize = Integer.parseInt(cmdLine.getOptionValue("binSize"));
+        }
+
+        if (cmdLine.hasOption("depthHistogram")) {
+            depthHistogram = cmdLine.getOptionValue("depthHistogram");
+        }
+
+        if (cmdLine.hasOption("checkpoint")) {
+            checkpoint = cmdLine.getOptionValue("checkpoint");
+        }
+
+        resume = cmdLine.hasOption("resume");
+        if (resume && checkpoint == null) {
+            System.err.println("[ERROR] --resume needs --checkpoint");
+            System.exit(1);
+        }
+
+        if (cmdLine.hasOption("checkpointInterval")) {
+            checkpointInterval = Integer.parseInt(cmdLine.getOptionValue("checkpointInterval"));
+        }
+
+        quick = cmdLine.hasOption("quick");
+        if (quick && (cmdLine.hasOption("partial") || cmdLine.hasOption("depthHistogram") || cmdLine.hasOption("binProfile")
+                || cmdLine.hasOption("checkpoint") || cmdLine.hasOption("tee"))) {
+            System.err.println("[ERROR] --quick only writes the estimated report, without partial, depth, checkpoint or tee outputs");
+            System.exit(1);
+        }
+
+        sample = cmdLine.hasOption("sample");
+        if (sample && (quick || cmdLine.hasOption("partial") || cmdLine.hasOption("depthHistogram") || cmdLine.hasOption("binProfile")
+                || cmdLine.hasOption("checkpoint") || cmdLine.hasOption("tee"))) {
+            System.err.println("[ERROR] --sample only writes the estimated report, without quick, partial, depth, checkpoint or tee outputs");
+            System.exit(1);
+        }
+        if (cmdLine.hasOption("precision")) {
+            precision = Double.parseDouble(cmdLine.getOptionValue("precision"));
+        }
+        if (cmdLine.hasOption("seed")) {
+            seed = Long.parseLong(cmdLine.getOptionValue("seed"));
+        }
+        if (cmdLine.hasOption("windowSize")) {
+            windowSize = Integer.parseInt(cmdLine.getOptionValue("windowSize"));
+        }
+
+        if (cmdLine.hasOption("metrics")) {
+            metrics = cmdLine.getOptionValue("metrics");
+        }
+
+        if (cmdLine.hasOption("metricsInterval")) {
+            metricsInterval = Integer.parseInt(cmdLine.getOptionValue("metricsInterval"));
+        }
+
+        if (cmdLine.hasOption("regions")) {
+            regions = cmdLine.getOptionValue("regions");
+        }
+
+        if (cmdLine.hasOption("partial")) {
+            partial = cmdLine.getOptionValue("partial");
+        }
+
+        if (command.equals(CMD_MERGE)) {
+            partialFiles = cmdLine.getArgList();
+            if (partialFiles.isEmpty()) {
+                formatter.printHelp(usage, header, options, footer, true);
+                System.exit(1);
+            }
+        }
+
+        if (cmdLine.hasOption("binProfile")) {
+            binProfile = cmdLine.getOptionValue("binProfile");
+        }
+
+        if (cmdLine.hasOption("mapqTiers")) {
+            mapqTiers = parseMapqTiers(cmdLine.getOptionValue("mapqTiers"));
+            if (quick || sample || partial != null || checkpoint != null) {
+                System.err.println("[ERROR] --mapqTiers needs a full run, without quick, sample, partial or checkpoint");
+                System.exit(1);
+            }
+        }
+
+        if (cmdLine.hasOption("readGroupStats")) {
+            readGroupStats = cmdLine.getOptionValue("readGroupStats");
+            if (quick || sample || partial != null || checkpoint != null) {
+                System.err.println("[ERROR] --readGroupStats needs a full run, without quick, sample, partial or checkpoint");
+                System.exit(1);
+            }
+        }
+
+        if (cmdLine.hasOption("decompressThreads")) {
+            decompressThreads = Integer.parseInt(cmdLine.getOptionValue("decompressThreads"));
+        }
+
+        if (cmdLine.hasOption("threads")) {
+            threads = Integer.parseInt(cmdLine.getOptionValue("threads"));
+        }
+
+        if (cmdLine.hasOption("shardSize")) {
+            shardSize = Integer.parseInt(cmdLine.getOptionValue("shardSize"));
+        }
+
+        if (cmdLine.hasOption("tee")) {
+            tee = cmdLine.getOptionValue("tee");
+        }
+
+        if (cmdLine.hasOption("list")) {
+            manifest = cmdLine.getOptionValue("list");
+        }
+
+        if (cmdLine.hasOption("jobs")) {
+            jobs = Integer.parseInt(cmdLine.getOptionValue("jobs"));
+        }
+
+        if (cmdLine.hasOption("memoryBudget")) {
+            memoryBudget = parseSize(cmdLine.getOptionValue("memoryBudget"));
+        }
+
+        if (cmdLine.hasOption("port")) {
+            port = Integer.parseInt(cmdLine.getOptionValue("port"));
+        }
+
+        if (cmdLine.hasOption("queueSize")) {
+            queueSize = Integer.parseInt(cmdLine.getOptionValue("queueSize"));
+        }
+
+        if (cmdLine.hasOption("panel")) {
+            for (String panel : cmdLine.getOptionValues("panel")) {
+                if (panel.indexOf('=') <= 0) {
+                    System.err.println("[ERROR] --panel expects NAME=FILE: " + panel);
+                    System.exit(1);
+                }
+                panels.add(panel);
+            }
+            if (command.equals(CMD_QC) && (quick || sample || partial != null || checkpoint != null)) {
+                System.err.println("[ERROR] --panel needs a full run, without quick, sample, partial or checkpoint");
+                System.exit(1);
+            }
+        }
+
+        if (cmdLine.hasOption("saveCoverage")) {
+            saveCoverage = cmdLine.getOptionValue("saveCoverage");
+            if (quick || sample || partial != null || checkpoint != null) {
+                System.err.println("[ERROR] --saveCoverage needs a full run, without quick, sample, partial or checkpoint");
+                System.exit(1);
+            }
+        }
+
+        if (cmdLine.hasOption("topUp")) {
+            topUp = cmdLine.getOptionValue("topUp");
+            if (quick || sample || partial != null || checkpoint != null) {
+                System.err.println("[ERROR] --topUp needs a full run, without quick, sample, partial or checkpoint");
+                System.exit(1);
+            }
+            // only the coverage and the raw counters are saved, these could not be added up exactly
+            if (depth || depthHistogram != null || binProfile != null || mapqTiers != null || !panels.isEmpty()
+                    || readGroupStats != null) {
+                System.err.println("[ERROR] --topUp can not be combined with depth, depthHistogram, binProfile, "
+                        + "mapqTiers, panel or readGroupStats");
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Parse comma separated MAPQ thresholds into distinct ascending values.
+     */
+    static int[] parseMapqTiers(String tiers) {
+        TreeSet<Integer> values = new TreeSet<>();
+        for (String tier : tiers.split(",")) {
+            int mapq = -1;
+            try {
+                mapq = Integer.parseInt(tier.trim());
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            if (mapq < 0 || mapq > 255) {
+                System.err.println("[ERROR] --mapqTiers expects MAPQ values from 0 to 255: " + tier);
+                System.exit(1);
+            }
+            values.add(mapq);
+        }
+        return values.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Parse a byte count with an optional K, M or G suffix.
+     */
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase();
+        long unit = 1;
+        if (s.endsWith("K")) unit = 1L << 10;
+        else if (s.endsWith("M")) unit = 1L << 20;
+        else if (s.endsWith("G")) unit = 1L << 30;
+        if (unit != 1) s = s.substring(0, s.length() - 1);
+        return (long) (Double.parseDouble(s) * unit);
+    }
+
+    private void addQcOptions() {
+        options.addOption(Option.builder("i")
+                .longOpt("input")
+                .required(true)
+                .hasArg()
+                .argName("FILE")
+                .desc("input bam(BAM), - or a named pipe for a BAM stream. [request]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("tee")
+                .hasArg()
+                .argName("FILE")
+                .desc("write the input BAM through to this file unchanged while it is read")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("checkpoint")
+                .hasArg()
+                .argName("FILE")
+                .desc("save the partial results to this file at contig boundaries, it is removed when the run completes")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("checkpointInterval")
+                .hasArg()
+                .argName("INT")
+                .desc("least number of seconds between two checkpoints [60]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("resume")
+                .desc("go on from the checkpoint file of a run that was killed, if there is one [false]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("quick")
+                .desc("estimate the reads, mapping rate, depth and X/Y depth ratio from the BAM index and records sampled across the contigs in a second, without counting all records [false]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("sample")
+                .desc("estimate the effective coverage, Coverage 1X and duplication rate with 95% intervals from random windows of the genome [false]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("precision")
+                .hasArg()
+                .argName("FLOAT")
+                .desc("stop sampling once the intervals are within this fraction of the estimates [0.05]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("seed")
+                .hasArg()
+                .argName("LONG")
+                .desc("random seed of the sampled windows and the bootstrap [1]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("windowSize")
+                .hasArg()
+                .argName("INT")
+                .desc("size of a sampled window [100000]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("metrics")
+                .hasArg()
+                .argName("FILE")
+                .desc("rewrite the run metrics and progress to this file while running, JSON for a .json name, Prometheus text otherwise")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("metricsInterval")
+                .hasArg()
+                .argName("INT")
+                .desc("seconds between two writes of the metrics file [10]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("regions")
+                .hasArg()
+                .argName("FILE")
+                .desc("process only these regions, BED ranges, whole contigs or * for the unmapped reads, one per line")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("partial")
+                .hasArg()
+                .argName("FILE")
+                .desc("write the raw counters of the processed shards to this file for the merge command, instead of a report")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("readGroupStats")
+                .hasArg()
+                .argName("FILE")
+                .desc("write the reads, bases, mapping and duplication rate, mapped bases and effective coverage of every read group and library to this file")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("panel")
+                .hasArg()
+                .argName("NAME=FILE")
+                .desc("another reference panel whose known sites and effective coverage are reported under its name, may be given more than once")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("mapqTiers")
+                .hasArg()
+                .argName("INT,...")
+                .desc("MAPQ thresholds whose mapped bases, effective coverage and Coverage 1X are reported besides the unfiltered ones. Needs a coordinate sorted BAM")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("saveCoverage")
+                .hasArg()
+                .argName("FILE")
+                .desc("save the covered bases of every contig and the raw counters to this file, for a later --topUp")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("topUp")
+                .hasArg()
+                .argName("FILE")
+                .desc("add the coverage and counters saved by --saveCoverage for the same sample to those of this BAM, reporting all of the data")
+                .build());
+        addDepthOutputOptions();
+        options.addOption(Option.builder("o")
+                .longOpt("output")
+                .hasArg()
+                .argName("String")
+                .desc("report file [request]")
+                .build());
+        addRunOptions();
+    }
+
+    private void addDepthOutputOptions() {
+        options.addOption(Option.builder()
+                .longOpt("depthHistogram")
+                .hasArg()
+                .argName("FILE")
+                .desc("write the number of bases at each depth to this file, implies --depth")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("binProfile")
+                .hasArg()
+                .argName("FILE")
+                .desc("write the mean depth and coverage of fixed-size bins to this file, implies --depth")
+                .build());
+    }
+
+    private void addMergeOptions() {
+        options.addOption(Option.builder("s")
+                .longOpt("site")
+                .required(true)
+                .hasArg()
+                .argName("FILE")
+                .desc("reference panel site.vcfs list, or a site index built by the index command [request]")
+                .build());
+        options.addOption(Option.builder("o")
+                .longOpt("output")
+                .required(true)
+                .hasArg()
+                .argName("FILE")
+                .desc("report file [request]")
+                .build());
+        addDepthOutputOptions();
+    }
+
+    /**
+     * Options shared by every command that runs the QC over BAM files.
+     */
+    private void addRunOptions() {
+        options.addOption(Option.builder("s")
+                .longOpt("site")
+                .required(true)
+                .hasArg()
+                .argName("FILE")
+                .desc("reference panel site.vcfs list, or a site index built by the index command [request]")
+                .build());
+        options.addOption(Option.builder("c")
+                .longOpt("countSecondaryReads")
+                .desc("The secondary alignment reads are counted and ignored by default [false]")
+                .build());
+        options.addOption(Option.builder("m")
+                .longOpt("offHeap")
+                .desc("Keep the per-contig coverage bitmap outside of the java heap [false]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("decompressThreads")
+                .hasArg()
+                .argName("INT")
+                .desc("threads inflating BGZF blocks ahead of the counting thread in a single pass, 0 uses htsjdk's reader [0]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("asyncIo")
+                .desc("Let htsjdk read ahead on a background thread [false]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("depth")
+                .desc("Follow the per-base depth in the same pass and report Coverage 2X and 5X [false]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("binSize")
+                .hasArg()
+                .argName("INT")
+                .desc("bin size of the bin profile [100000]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("skipDeletions")
+                .desc("Do not count the deletions and skipped regions (CIGAR D/N) of a read as covered or mapped bases [false]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("findDuplicates")
+                .desc("Find duplicates by unclipped 5' end, strand and mate while reading, for BAMs never duplicate marked. Needs a coordinate sorted BAM [false]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("streaming")
+                .desc("Resolve known sites as reads stream by, without any per-contig coverage buffer. Needs a coordinate sorted BAM [false]")
+                .build());
+        options.addOption(Option.builder("t")
+                .longOpt("threads")
+                .hasArg()
+                .argName("INT")
+                .desc("worker threads, splitting the genome into shards when the BAM is indexed [1]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("shardSize")
+                .hasArg()
+                .argName("INT")
+                .desc("largest contig range processed by one worker thread [10000000]")
+                .build());
+    }
+
+    private void addBatchOptions() {
+        options.addOption(Option.builder("l")
+                .longOpt("list")
+                .required(true)
+                .hasArg()
+                .argName("FILE")
+                .desc("manifest of input bam and report file per line, tab separated [request]")
+                .build());
+        addJobOptions();
+        addRunOptions();
+    }
+
+    private void addServeOptions() {
+        options.addOption(Option.builder("p")
+                .longOpt("port")
+                .hasArg()
+                .argName("INT")
+                .desc("port to listen on, at 127.0.0.1 only [" + port + "]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("queueSize")
+                .hasArg()
+                .argName("INT")
+                .desc("submitted samples waiting for a job slot, more are refused until there is room [" + queueSize + "]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("panel")
+                .hasArg()
+                .argName("NAME=FILE")
+                .desc("another reference panel a sample can choose by name, may be given more than once")
+                .build());
+        addJobOptions();
+        addRunOptions();
+    }
+
+    /**
+     * Options of the commands running several samples at the same time.
+     */
+    private void addJobOptions() {
+        options.addOption(Option.builder("j")
+                .longOpt("jobs")
+                .hasArg()
+                .argName("INT")
+                .desc("samples processed at the same time [" + jobs + "]")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("memoryBudget")
+                .hasArg()
+                .argName("SIZE")
+                .desc("coverage buffer memory shared by running samples, e.g. 8G [half of the max heap]")
+                .build());
+    }
+
+    private void addIndexOptions() {
+        options.addOption(Option.builder("s")
+                .longOpt("site")
+                .required(true)
+                .hasArg()
+                .argName("FILE")
+                .desc("reference panel site.vcfs list [request]")
+                .build());
+        options.addOption(Option.builder("o")
+                .longOpt("output")
+                .required(true)
+                .hasArg()
+                .argName("FILE")
+                .desc("site index to write [request]")
+                .build());
+    }
+
+    public String getCommand() {
+        return command;
     }
 
     public String getInfile() {
@@ -118,6 +658,154 @@ public class Options {
         return countSecondaryReads;
     }
 
+    public boolean isOffHeapCoverage() {
+        return offHeapCoverage;
+    }
+
+    public int getDecompressThreads() {
+        return decompressThreads;
+    }
+
+    public boolean isAsyncIo() {
+        return asyncIo;
+    }
+
+    public boolean isDepth() {
+        return depth;
+    }
+
+    public int getBinSize() {
+        return binSize;
+    }
+
+    public String getDepthHistogram() {
+        return depthHistogram;
+    }
+
+    public String getBinProfile() {
+        return binProfile;
+    }
+
+    public String getReadGroupStats() {
+        return readGroupStats;
+    }
+
+    public int[] getMapqTiers() {
+        return mapqTiers;
+    }
+
+    public String getSaveCoverage() {
+        return saveCoverage;
+    }
+
+    public String getTopUp() {
+        return topUp;
+    }
+
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public boolean isQuick() {
+        return quick;
+    }
+
+    public boolean isSample() {
+        return sample;
+    }
+
+    public double getPrecision() {
+        return precision;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public String getMetrics() {
+        return metrics;
+    }
+
+    public int getMetricsInterval() {
+        return metricsInterval;
+    }
+
+    public String getRegions() {
+        return regions;
+    }
+
+    public String getPartial() {
+        return partial;
+    }
+
+    public List<String> getPartialFiles() {
+        return partialFiles;
+    }
+
+    public String getTee() {
+        return tee;
+    }
+
+    public boolean isSkipDeletions() {
+        return skipDeletions;
+    }
+
+    public boolean isFindDuplicates() {
+        return findDuplicates;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getShardSize() {
+        return shardSize;
+    }
+
+    public String getManifest() {
+        return manifest;
+    }
+
+    public int getJobs() {
+        return jobs;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * The named panels besides the one of -s, as NAME=FILE, that samples of the server choose from
+     * or that a single run reports next to it.
+     */
+    public List<String> getPanels() {
+        return panels;
+    }
+
     public void setAppVersion() {
         Properties properties = new Properties();
         try {
@@ -0,0 +1,190 @@
+package org.bgi.flexlab.bamqc;
+
+import org.bgi.flexlab.bamqc.util.CoverageBitmap;
+import org.bgi.flexlab.bamqc.util.CoverageSweep;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Further named reference panels whose known sites are resolved against the coverage of the
+ * same pass as the panel of -s, so comparing panels costs their site lookups and no more BAM I/O.
+ *
+ * The sites of a contig of every panel are merged into one sorted array of distinct positions,
+ * each with a bit per panel holding it. The coverage is then looked up once per position of the
+ * union, however many panels share it, at the contig boundary or as the merged intervals go by.
+ */
+public class PanelSet {
+    final static int MAX_PANELS = 64;
+
+    final String[] names;
+    private final ReferencePanelSite[] panels;
+    final long[] knownSites;
+    final long[] knownSitesCovered;
+    private final Set<String> counted = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param specs NAME=FILE per panel, the file as for -s
+     */
+    public PanelSet(List<String> specs) {
+        if (specs.size() > MAX_PANELS)
+            throw new IllegalArgumentException("at most " + MAX_PANELS + " panels can be compared in one run");
+        names = new String[specs.size()];
+        panels = new ReferencePanelSite[specs.size()];
+        for (int p = 0; p < specs.size(); p++) {
+            int i = specs.get(p).indexOf('=');
+            names[p] = specs.get(p).substring(0, i);
+            if (Arrays.asList(names).subList(0, p).contains(names[p]))
+                throw new IllegalArgumentException("panel " + names[p] + " is given twice");
+            panels[p] = new ReferencePanelSite(specs.get(p).substring(i + 1));
+        }
+        knownSites = new long[names.length];
+        knownSitesCovered = new long[names.length];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * The merged sites of a contig, null when no panel has any or the contig is counted already.
+     */
+    public Sites sites(String chr) {
+        if (counted.contains(chr)) return null;
+        int[][] heads = new int[panels.length][];
+        int total = 0;
+        for (int p = 0; p < panels.length; p++) {
+            if (!panels[p].has_sites(chr)) continue;
+            heads[p] = panels[p].load_sites(chr);
+            total += heads[p].length;
+        }
+        if (total == 0) return null;
+
+        int[] positions = new int[total];
+        long[] masks = new long[total];
+        long[] known = new long[panels.length];
+        int[] next = new int[panels.length];
+        int n = 0;
+        while (true) {
+            int min = Integer.MAX_VALUE;
+            boolean any = false;
+            for (int p = 0; p < heads.length; p++) {
+                if (heads[p] == null || next[p] == heads[p].length) continue;
+                min = Math.min(min, heads[p][next[p]]);
+                any = true;
+            }
+            if (!any) break;
+            long mask = 0;
+            for (int p = 0; p < heads.length; p++) {
+                if (heads[p] == null || next[p] == heads[p].length || heads[p][next[p]] != min) continue;
+                mask |= 1L << p;
+                known[p]++;
+                next[p]++;
+            }
+            positions[n] = min;
+            masks[n++] = mask;
+        }
+        return new Sites(Arrays.copyOf(positions, n), Arrays.copyOf(masks, n), known);
+    }
+
+    /**
+     * Add the counts of a contig whose sites are all resolved.
+     */
+    public void add(String chr, long[] known, long[] covered) {
+        for (int p = 0; p < names.length; p++) {
+            knownSites[p] += known[p];
+            knownSitesCovered[p] += covered[p];
+        }
+        counted.add(chr);
+    }
+
+    /**
+     * Panel contigs without any read still count their sites as known, duplicates included.
+     */
+    public void finish() {
+        for (int p = 0; p < panels.length; p++) {
+            for (String chr : panels[p].contigs()) {
+                if (!counted.contains(chr)) knownSites[p] += panels[p].count_sites(chr);
+            }
+        }
+    }
+
+    public double getEffectiveCoverage(int p) {
+        return ReferencePanelSite.getEffectiveCoverage(knownSites[p], knownSitesCovered[p]);
+    }
+
+    /**
+     * The union of the sites of one contig, never modified once built.
+     */
+    public static class Sites {
+        private final int[] positions;
+        private final long[] masks;
+        // distinct sites of every panel on the contig
+        final long[] known;
+
+        Sites(int[] positions, long[] masks, long[] known) {
+            this.positions = positions;
+            this.masks = masks;
+            this.known = known;
+        }
+
+        private int first(int from) {
+            int i = Arrays.binarySearch(positions, from);
+            return i < 0 ? -i - 1 : i;
+        }
+
+        /**
+         * Covered sites of every panel within [from, to], the bitmap holding position p at p - offset.
+         */
+        public long[] count(CoverageBitmap coverage, int from, int to, long offset) {
+            long[] covered = new long[known.length];
+            for (int i = first(from); i < positions.length && positions[i] <= to; i++) {
+                long p = positions[i] - offset;
+                if (p >= 0 && p < coverage.length() && coverage.get(p)) add(covered, masks[i]);
+            }
+            return covered;
+        }
+
+        /**
+         * Resolve the sites within [from, to] as the merged intervals of a sweep go by.
+         */
+        public Tally tally(int from, int to) {
+            return new Tally(this, first(from), to);
+        }
+    }
+
+    /**
+     * Covered sites of every panel, counted from the intervals of a sorted sweep.
+     */
+    public static class Tally implements CoverageSweep.Sink {
+        private final Sites sites;
+        private final int to;
+        private int next;
+        private final long[] covered;
+
+        Tally(Sites sites, int next, int to) {
+            this.sites = sites;
+            this.next = next;
+            this.to = to;
+            this.covered = new long[sites.known.length];
+        }
+
+        @Override
+        public void cover(long start, long end) {
+            int[] positions = sites.positions;
+            while (next < positions.length && positions[next] < start) next++;
+            for (; next < positions.length && positions[next] <= end && positions[next] <= to; next++)
+                add(covered, sites.masks[next]);
+        }
+
+        public long[] covered() {
+            return covered;
+        }
+    }
+
+    private static void add(long[] covered, long mask) {
+        for (; mask != 0; mask &= mask - 1) covered[Long.numberOfTrailingZeros(mask)]++;
+    }
+}
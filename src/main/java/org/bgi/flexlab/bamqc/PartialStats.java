@@ -0,0 +1,115 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import org.bgi.flexlab.bamqc.util.DepthProfile;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Raw counters of the shards one run processed, so that the shards of a BAM can be spread
+ * over several machines and merged into the exact report afterwards.
+ *
+ * <pre>
+ * magic "BQPS", int version, UTF settings, boolean depth, int binSize
+ * int n_contigs x { UTF name, int length }
+ * int n_shards x { UTF contig ("*" for the unmapped reads), int start, int end,
+ *                  long totalReads, long totalBases, long alignedReads, long duplicatedReads,
+ *                  long numSecondaryAlignments, long knownSitesCovered, long leadingBases,
+ *                  long readBases, long basesMapped, long sitesCovered, boolean visited,
+ *                  boolean depth, [depth profile] }
+ * </pre>
+ */
+public class PartialStats {
+    final private static byte[] MAGIC = {'B', 'Q', 'P', 'S'};
+    final private static int VERSION = 2;
+
+    final String settings;
+    final boolean depth;
+    final int binSize;
+    final SAMSequenceDictionary dict;
+    final List<Shard> shards;
+
+    PartialStats(String settings, boolean depth, int binSize, SAMSequenceDictionary dict, List<Shard> shards) {
+        this.settings = settings;
+        this.depth = depth;
+        this.binSize = binSize;
+        this.dict = dict;
+        this.shards = shards;
+    }
+
+    public void write(String path) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(settings);
+            out.writeBoolean(depth);
+            out.writeInt(binSize);
+            out.writeInt(dict.size());
+            for (SAMSequenceRecord seq : dict.getSequences()) {
+                out.writeUTF(seq.getSequenceName());
+                out.writeInt(seq.getSequenceLength());
+            }
+            out.writeInt(shards.size());
+            for (Shard shard : shards) {
+                out.writeUTF(shard.isUnmapped() ? "*" : shard.contig);
+                out.writeInt(shard.start);
+                out.writeInt(shard.end);
+                out.writeLong(shard.totalReads);
+                out.writeLong(shard.totalBases);
+                out.writeLong(shard.alignedReads);
+                out.writeLong(shard.duplicatedReads);
+                out.writeLong(shard.numSecondaryAlignments);
+                out.writeLong(shard.knownSitesCovered);
+                out.writeLong(shard.leadingBases);
+                out.writeLong(shard.stats.readBases);
+                out.writeLong(shard.stats.basesMapped);
+                out.writeLong(shard.stats.sitesCovered);
+                out.writeBoolean(shard.stats.visited);
+                out.writeBoolean(shard.stats.depth != null);
+                if (shard.stats.depth != null) shard.stats.depth.write(out);
+            }
+        }
+    }
+
+    public static PartialStats read(String path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(path + " is not a bamqc partial file");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported partial file version " + version + " in " + path);
+            String settings = in.readUTF();
+            boolean depth = in.readBoolean();
+            int binSize = in.readInt();
+            SAMSequenceDictionary dict = new SAMSequenceDictionary();
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) dict.addSequence(new SAMSequenceRecord(in.readUTF(), in.readInt()));
+            n = in.readInt();
+            List<Shard> shards = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                String contig = in.readUTF();
+                Shard shard = new Shard(contig.equals("*") ? null : contig, in.readInt(), in.readInt());
+                shard.totalReads = in.readLong();
+                shard.totalBases = in.readLong();
+                shard.alignedReads = in.readLong();
+                shard.duplicatedReads = in.readLong();
+                shard.numSecondaryAlignments = in.readLong();
+                shard.knownSitesCovered = in.readLong();
+                shard.leadingBases = in.readLong();
+                shard.stats.readBases = in.readLong();
+                shard.stats.basesMapped = in.readLong();
+                shard.stats.sitesCovered = in.readLong();
+                shard.stats.visited = in.readBoolean();
+                if (in.readBoolean()) shard.stats.depth = DepthProfile.read(in);
+                shards.add(shard);
+            }
+            return new PartialStats(settings, depth, binSize, dict, shards);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.bgi.flexlab.bamqc;
+
+import org.bgi.flexlab.bamqc.util.StatsUtils;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Counters of every read group and library, kept next to those of the sample in the same pass.
+ * Groups are numbered as the read groups of {@link ReadGroups} followed by their libraries, and
+ * a read adds to its read group and its library.
+ *
+ * The known sites a group covers are kept as one bit per site of the current contig or shard,
+ * set from the aligned blocks of the reads of the group, and added up when the range is done.
+ * That is a few bits per site and group instead of a coverage bitmap per group.
+ */
+public class ReadGroupStats {
+    private final ReadGroups groups;
+    private final boolean skipDeletions;
+    final long[] reads;
+    final long[] bases;
+    final long[] aligned;
+    final long[] duplicates;
+    final long[] basesMapped;
+    final long[] knownSitesCovered;
+    // sites of the current range, [site_from, site_to) of the array
+    private int[] sites = null;
+    private int site_from;
+    private int site_to;
+    private long[][] covered;
+
+    public ReadGroupStats(ReadGroups groups, boolean skipDeletions) {
+        this.groups = groups;
+        this.skipDeletions = skipDeletions;
+        int n = groups.size() + groups.libraries.length;
+        reads = new long[n];
+        bases = new long[n];
+        aligned = new long[n];
+        duplicates = new long[n];
+        basesMapped = new long[n];
+        knownSitesCovered = new long[n];
+        covered = new long[n][];
+    }
+
+    /**
+     * Follow the sites within [from, to] until {@link #finishSites()}, null for none.
+     */
+    public void startSites(int[] sites, int from, int to) {
+        finishSites();
+        if (sites == null) return;
+        int i = Arrays.binarySearch(sites, from);
+        site_from = i < 0 ? -i - 1 : i;
+        int j = Arrays.binarySearch(sites, to);
+        site_to = j < 0 ? -j - 1 : j + 1;
+        this.sites = sites;
+    }
+
+    public void finishSites() {
+        if (sites == null) return;
+        for (int g = 0; g < covered.length; g++) {
+            if (covered[g] == null) continue;
+            for (long word : covered[g]) knownSitesCovered[g] += Long.bitCount(word);
+            covered[g] = null;
+        }
+        sites = null;
+    }
+
+    /**
+     * Add a read that passed the secondary filter, to the counters only when counted is set,
+     * as a read overlapping a shard from before it only covers sites.
+     */
+    public void add(BamRecord read, boolean counted) {
+        int rg = read.readGroup >= 0 ? read.readGroup : groups.unknown();
+        int lib = groups.size() + groups.library[rg];
+        if (counted) {
+            reads[rg]++;
+            reads[lib]++;
+            bases[rg] += read.getReadLength();
+            bases[lib] += read.getReadLength();
+        }
+        if (read.getReadUnmappedFlag()) return;
+        if (counted) {
+            aligned[rg]++;
+            aligned[lib]++;
+        }
+        if (read.getDuplicateReadFlag()) {
+            if (counted) {
+                duplicates[rg]++;
+                duplicates[lib]++;
+            }
+            return;
+        }
+        int start = read.getAlignmentStart();
+        int end = read.getAlignmentEnd();
+        if (end < start) return;
+        long mapped = 0;
+        if (!skipDeletions) {
+            mapped = end - start + 1;
+            cover(start, end, rg, lib);
+        } else {
+            int pos = start;
+            for (int i = 0; i < read.cigarLength; i++) {
+                int op = read.cigar[i] & 0xf;
+                int len = read.cigar[i] >>> 4;
+                if (BamRecord.isAligned(op)) {
+                    mapped += len;
+                    cover(pos, pos + len - 1, rg, lib);
+                }
+                if (BamRecord.consumesReference(op)) pos += len;
+            }
+        }
+        if (counted) {
+            basesMapped[rg] += mapped;
+            basesMapped[lib] += mapped;
+        }
+    }
+
+    private void cover(int start, int end, int rg, int lib) {
+        if (sites == null) return;
+        int i = Arrays.binarySearch(sites, site_from, site_to, start);
+        if (i < 0) i = -i - 1;
+        for (; i < site_to && sites[i] <= end; i++) {
+            int bit = i - site_from;
+            set(rg, bit);
+            set(lib, bit);
+        }
+    }
+
+    private void set(int group, int bit) {
+        if (covered[group] == null) covered[group] = new long[(site_to - site_from + 63) / 64];
+        covered[group][bit >>> 6] |= 1L << bit;
+    }
+
+    public void add(ReadGroupStats other) {
+        for (int g = 0; g < reads.length; g++) {
+            reads[g] += other.reads[g];
+            bases[g] += other.bases[g];
+            aligned[g] += other.aligned[g];
+            duplicates[g] += other.duplicates[g];
+            basesMapped[g] += other.basesMapped[g];
+            knownSitesCovered[g] += other.knownSitesCovered[g];
+        }
+    }
+
+    /**
+     * One line per read group and then per library with reads, libraries having "*" for the read group.
+     *
+     * @param knownSites known sites of the sample, the effective coverage of a group being relative to all of them
+     */
+    public void write(String outfile, long knownSites) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(outfile, false))) {
+            out.println("#read_group\tlibrary\treads\tbases\tmapping_rate\tduplication_rate\tbases_mapped\tknown_sites_covered\teffective_coverage");
+            for (int g = 0; g < reads.length; g++) {
+                if (reads[g] == 0) continue;
+                boolean rg = g < groups.size();
+                String library = groups.libraries[rg ? groups.library[g] : g - groups.size()];
+                out.println((rg ? groups.ids[g] : "*") + "\t" + library + "\t" + reads[g] + "\t" + bases[g] + "\t"
+                        + StatsUtils.realFormat((double) aligned[g] / reads[g], 4) + "\t"
+                        + StatsUtils.realFormat((double) duplicates[g] / reads[g], 4) + "\t"
+                        + basesMapped[g] + "\t" + knownSitesCovered[g] + "\t"
+                        + StatsUtils.realFormat(ReferencePanelSite.getEffectiveCoverage(knownSites, knownSitesCovered[g]), 4));
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMReadGroupRecord;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The read groups of the header and their libraries, numbered once so that a record carries a
+ * small int instead of its RG string. Reads without an RG tag, or with one missing from the
+ * header, fall into an extra group "-"; read groups without a library into the library "-".
+ */
+public class ReadGroups {
+    final static String UNKNOWN = "-";
+
+    final String[] ids;
+    final String[] libraries;
+    // library index of every read group
+    final int[] library;
+    private final Map<String, Integer> index = new HashMap<>();
+    private final byte[][] id_bytes;
+
+    public ReadGroups(SAMFileHeader header) {
+        int n = header.getReadGroups().size();
+        ids = new String[n + 1];
+        id_bytes = new byte[n][];
+        library = new int[n + 1];
+        Map<String, Integer> libs = new LinkedHashMap<>();
+        int i = 0;
+        for (SAMReadGroupRecord rg : header.getReadGroups()) {
+            String lib = rg.getLibrary() != null ? rg.getLibrary() : UNKNOWN;
+            ids[i] = rg.getReadGroupId();
+            id_bytes[i] = ids[i].getBytes(StandardCharsets.UTF_8);
+            library[i] = libs.computeIfAbsent(lib, k -> libs.size());
+            index.put(ids[i], i);
+            i++;
+        }
+        ids[n] = UNKNOWN;
+        library[n] = libs.computeIfAbsent(UNKNOWN, k -> libs.size());
+        libraries = libs.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Read groups of the header plus the one for unknown reads.
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    public int unknown() {
+        return ids.length - 1;
+    }
+
+    public int resolve(String id) {
+        if (id == null) return unknown();
+        Integer i = index.get(id);
+        return i != null ? i : unknown();
+    }
+
+    /**
+     * The read group whose id is the given bytes of a BAM record, without making a String of them.
+     */
+    public int resolve(byte[] buf, int off, int len) {
+        for (int i = 0; i < id_bytes.length; i++) {
+            if (matches(i, buf, off, len)) return i;
+        }
+        return unknown();
+    }
+
+    private boolean matches(int i, byte[] buf, int off, int len) {
+        byte[] id = id_bytes[i];
+        if (id.length != len) return false;
+        for (int j = 0; j < len; j++) {
+            if (id[j] != buf[off + j]) return false;
+        }
+        return true;
+    }
+}
@@ -2,9 +2,13 @@ package org.bgi.flexlab.bamqc;
 
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFFileReader;
+import org.bgi.flexlab.bamqc.util.CoverageBitmap;
+import org.bgi.flexlab.bamqc.util.SiteCursor;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ReferencePanelSite {
     /*
@@ -12,13 +16,23 @@ public class ReferencePanelSite {
     and compute that sample’s effective coverage λeff = − ln(1 − fcovered)
      */
     Map<String, List<String>> site_vcf_map;
-    long n_known_sites = 0;
-    long n_known_sites_covered = 0;
+    SiteIndex site_index;
+    // filled by preload() when the panel is shared by many samples
+    private final Map<String, int[]> site_cache = new ConcurrentHashMap<>();
+    private final Map<String, Long> record_count_cache = new ConcurrentHashMap<>();
+    // time spent decoding sites and counting records, summed over threads
+    private final AtomicLong load_nanos = new AtomicLong();
 
+    /**
+     * @param site_vcf_list a list of region and site VCF per line, or a site index built by the index command
+     */
     public ReferencePanelSite(String site_vcf_list) {
-        this.site_vcf_map = new HashMap<>();
+        this.site_vcf_map = new LinkedHashMap<>();
         try {
-            read_vcf_list(site_vcf_list);
+            if (SiteIndex.isSiteIndex(site_vcf_list))
+                site_index = new SiteIndex(site_vcf_list);
+            else
+                read_vcf_list(site_vcf_list);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -59,12 +73,56 @@ public class ReferencePanelSite {
         bufferReader.close();
     }
 
-    public void count_site_covered(String chr, boolean[] coverage) {
-        if(!site_vcf_map.containsKey(chr)) return;
+    public Set<String> contigs() {
+        if (site_index != null) return site_index.contigs();
+        return Collections.unmodifiableSet(site_vcf_map.keySet());
+    }
+
+    public boolean has_sites(String chr) {
+        if (site_index != null) return site_index.contains(chr);
+        return site_vcf_map.containsKey(chr);
+    }
+
+    /**
+     * Decode the sites and record counts of every contig up front and keep them, so that
+     * samples sharing this panel never parse it again. The cached arrays are never modified.
+     */
+    public void preload() {
+        for (String chr : contigs()) {
+            site_cache.put(chr, load_sites(chr));
+            record_count_cache.put(chr, count_sites(chr));
+        }
+    }
+
+    /**
+     * Read the sites of one contig into a sorted array of distinct positions.
+     */
+    public int[] load_sites(String chr) {
+        int[] cached = site_cache.get(chr);
+        if (cached != null) return cached;
+        long t = System.nanoTime();
+        try {
+            return read_sites(chr);
+        } finally {
+            load_nanos.addAndGet(System.nanoTime() - t);
+        }
+    }
+
+    private int[] read_sites(String chr) {
+        if (site_index != null) {
+            try {
+                return site_index.positions(chr);
+            } catch (IOException e) {
+                System.err.println("[ERROR] failed to read site index: " + e.getMessage());
+                System.exit(2);
+            }
+        }
 
         List<String> site_vcfs = site_vcf_map.get(chr);
-        Set<Integer> positions = new HashSet<>();
+        if (site_vcfs == null) return new int[0];
 
+        int[] positions = new int[1024];
+        int n = 0;
         for(String site_vcf : site_vcfs){
             VCFFileReader reader = new VCFFileReader(new File(site_vcf), false);
             for (VariantContext vc : reader) {
@@ -72,36 +130,87 @@ public class ReferencePanelSite {
                     System.err.println("[ERROR] site_vcf (" + site_vcf + ") has different chrom : " + vc.getContig());
                     System.exit(2);
                 }
+                if (n == positions.length) positions = Arrays.copyOf(positions, n * 2);
+                positions[n++] = vc.getStart();
+            }
+            reader.close();
+        }
+        Arrays.sort(positions, 0, n);
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (m == 0 || positions[i] != positions[m - 1]) positions[m++] = positions[i];
+        }
+        return Arrays.copyOf(positions, m);
+    }
 
-                if(positions.contains(vc.getStart()))
-                    continue;
-                else
-                    positions.add(vc.getStart());
-
-                if (coverage[vc.getStart()])
-                    n_known_sites_covered++;
-                n_known_sites++;
+    /**
+     * Sorted, distinct sites of one contig for a single forward pass. A site index is decoded
+     * on the fly, VCFs are loaded as by {@link #load_sites(String)}.
+     */
+    public SiteCursor.Positions site_positions(String chr) {
+        if (site_index != null && !site_cache.containsKey(chr)) {
+            try {
+                return site_index.cursor(chr);
+            } catch (IOException e) {
+                System.err.println("[ERROR] failed to read site index: " + e.getMessage());
+                System.exit(2);
             }
         }
-        site_vcf_map.remove(chr);
+        return SiteCursor.of(load_sites(chr), 0, Integer.MAX_VALUE);
     }
 
-    public void count_site_uncover_chrom() {
-        VCFFileReader reader;
+    /**
+     * Count the sites within [from, to] whose bit is set, the bitmap holding position p at p - offset.
+     */
+    public static long count_covered(int[] sites, int from, int to, CoverageBitmap coverage, long offset) {
+        int i = Arrays.binarySearch(sites, from);
+        if (i < 0) i = -i - 1;
+        long n = 0;
+        for (; i < sites.length && sites[i] <= to; i++) {
+            long p = sites[i] - offset;
+            if (p >= 0 && p < coverage.length() && coverage.get(p)) n++;
+        }
+        return n;
+    }
 
-        for(String chr: site_vcf_map.keySet()){
-            List<String> site_vcfs = site_vcf_map.get(chr);
-            for(String site_vcf : site_vcfs) {
-                reader = new VCFFileReader(new File(site_vcf), false);
-                for (VariantContext vc : reader) {
-                    n_known_sites++;
-                }
+    /**
+     * Number of site records of a contig as listed in the panel, duplicates included.
+     */
+    public long count_sites(String chr) {
+        if (site_index != null) return site_index.records(chr);
+        Long cached = record_count_cache.get(chr);
+        if (cached != null) return cached;
+        long t = System.nanoTime();
+        try {
+            return count_records(chr);
+        } finally {
+            load_nanos.addAndGet(System.nanoTime() - t);
+        }
+    }
+
+    private long count_records(String chr) {
+        long n = 0;
+        List<String> site_vcfs = site_vcf_map.get(chr);
+        if (site_vcfs == null) return n;
+        for(String site_vcf : site_vcfs) {
+            VCFFileReader reader = new VCFFileReader(new File(site_vcf), false);
+            for (VariantContext vc : reader) {
+                n++;
             }
+            reader.close();
         }
+        return n;
+    }
+
+    /**
+     * Time spent reading sites from the panel so far, cached contigs cost nothing.
+     */
+    public long loadNanos() {
+        return load_nanos.get();
     }
 
-    public double getEffectiveCoverage() {
-        double fcovered = (double) this.n_known_sites_covered/this.n_known_sites;
+    public static double getEffectiveCoverage(long n_known_sites, long n_known_sites_covered) {
+        double fcovered = (double) n_known_sites_covered/n_known_sites;
         return - Math.log(1-fcovered);
     }
 }
@@ -0,0 +1,244 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+import org.bgi.flexlab.bamqc.util.CoverageBitmap;
+import org.bgi.flexlab.bamqc.util.Pair;
+import org.bgi.flexlab.bamqc.util.StatsUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Estimates the effective coverage, Coverage 1X and duplication rate from windows of the genome
+ * drawn at random through the index, until the 95% confidence intervals are narrow enough.
+ *
+ * The genome is cut into windows as for shards and the windows are visited in an order shuffled
+ * by the seed. After every batch the estimates are the ratios of the window sums, and their
+ * intervals are the percentiles of a bootstrap over the windows. Sampling stops when the half
+ * width of the effective coverage and Coverage 1X intervals is within the precision, relative to
+ * the estimate, with enough windows holding panel sites, or when every window was read. Once
+ * every window is read the unplaced reads are counted too and the known sites are those of a
+ * full run, so the figures are those of its report and their intervals have no width. Batches
+ * have a fixed size and are merged in order, so a seed gives the same result with any number of
+ * threads.
+ */
+public class RegionSampler {
+    final private static int BATCH = 16;
+    final private static int MIN_WINDOWS = 32;
+    final private static int BOOTSTRAP = 1000;
+
+    private final double precision;
+    private final long seed;
+    private final int windowSize;
+
+    private int n = 0;
+    private int n_with_sites = 0;
+    private int n_windows = 0;
+    private long sampled_bases = 0;
+    // reads without any coordinate, read once every window is
+    private long unplaced_reads = 0;
+    // the panel sites a full run knows, once every window is read
+    private long all_known = 0;
+    // contigs holding a mapped read in some window
+    private final Set<String> visited = ConcurrentHashMap.newKeySet();
+    // per sampled window
+    private long[] known = new long[64];
+    private long[] known_covered = new long[64];
+    private long[] covered = new long[64];
+    private long[] length = new long[64];
+    private long[] reads = new long[64];
+    private long[] duplicates = new long[64];
+    // estimate, lower and upper bound of each figure
+    private double[] effective;
+    private double[] coverage;
+    private double[] duplication;
+
+    /**
+     * @param precision largest half width of the intervals relative to the estimate
+     */
+    public RegionSampler(double precision, long seed, int windowSize) {
+        this.precision = precision;
+        this.seed = seed;
+        this.windowSize = windowSize;
+    }
+
+    void run(final BamStats stats, SAMSequenceDictionary dict, final ReferencePanelSite panel, int threads) {
+        List<Shard> windows = Shard.split(dict, windowSize);
+        n_windows = windows.size();
+        Random random = new Random(seed);
+        Collections.shuffle(windows, random);
+
+        final ThreadLocal<CoverageBitmap> bitmap = ThreadLocal.withInitial(
+                () -> stats.isStreaming() ? null : new CoverageBitmap(windowSize, false));
+        // a reader per thread, as opening one loads the whole index again for every window
+        final List<SamReader> readers = Collections.synchronizedList(new ArrayList<>());
+        final ThreadLocal<SamReader> reader = ThreadLocal.withInitial(() -> {
+            SamReader opened = stats.openReader();
+            readers.add(opened);
+            return opened;
+        });
+        final Map<String, int[]> sites = new ConcurrentHashMap<>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        System.err.println("Sampling " + windowSize + " bp windows out of " + n_windows + " with seed " + seed + " ...");
+        try {
+            for (int from = 0; from < windows.size(); from += BATCH) {
+                List<ForkJoinTask<long[]>> tasks = new ArrayList<>();
+                for (final Shard window : windows.subList(from, Math.min(from + BATCH, windows.size()))) {
+                    tasks.add(pool.submit(() -> {
+                        int[] contig_sites = panel.has_sites(window.contig)
+                                ? sites.computeIfAbsent(window.contig, panel::load_sites) : null;
+                        stats.process_shard(window, reader.get(), bitmap.get(), contig_sites, null);
+                        if (window.stats.visited) visited.add(window.contig);
+                        return new long[]{count_sites(contig_sites, window.start, window.end), window.knownSitesCovered,
+                                window.stats.sitesCovered, window.length(), window.totalReads, window.duplicatedReads};
+                    }));
+                }
+                for (ForkJoinTask<long[]> task : tasks) add(task.join());
+                if (n == n_windows) {
+                    unplaced_reads = stats.process_shard(Shard.unmapped(), null, null, null).totalReads;
+                    all_known = known_sites(panel);
+                }
+                estimate(random);
+                // a bootstrap over a handful of windows holding sites would claim a precision it does not have
+                if (n >= MIN_WINDOWS && n_with_sites >= MIN_WINDOWS && precise(effective) && precise(coverage)) break;
+            }
+        } finally {
+            pool.shutdown();
+            for (SamReader opened : readers) stats.closeReader(opened);
+        }
+        System.err.println("Sampled " + n + " windows, " + StatsUtils.realFormat(100.0 * sampled_bases / dict.getReferenceLength(), 2) + "% of the genome");
+    }
+
+    private static long count_sites(int[] sites, int from, int to) {
+        if (sites == null) return 0;
+        int i = Arrays.binarySearch(sites, from);
+        if (i < 0) i = -i - 1;
+        int j = Arrays.binarySearch(sites, to);
+        j = j < 0 ? -j - 1 : j + 1;
+        return j - i;
+    }
+
+    /**
+     * Known sites as a full run counts them, the distinct ones of the contigs with reads and every
+     * record of the others.
+     */
+    private long known_sites(ReferencePanelSite panel) {
+        long n_known = 0;
+        for (String chr : panel.contigs())
+            n_known += visited.contains(chr) ? panel.load_sites(chr).length : panel.count_sites(chr);
+        return n_known;
+    }
+
+    private void add(long[] window) {
+        if (n == known.length) {
+            known = Arrays.copyOf(known, n * 2);
+            known_covered = Arrays.copyOf(known_covered, n * 2);
+            covered = Arrays.copyOf(covered, n * 2);
+            length = Arrays.copyOf(length, n * 2);
+            reads = Arrays.copyOf(reads, n * 2);
+            duplicates = Arrays.copyOf(duplicates, n * 2);
+        }
+        known[n] = window[0];
+        known_covered[n] = window[1];
+        covered[n] = window[2];
+        length[n] = window[3];
+        reads[n] = window[4];
+        duplicates[n] = window[5];
+        sampled_bases += window[3];
+        if (window[0] > 0) n_with_sites++;
+        n++;
+    }
+
+    private boolean precise(double[] figure) {
+        if (Double.isNaN(figure[0]) || Double.isInfinite(figure[2])) return false;
+        return (figure[2] - figure[1]) / 2 <= precision * figure[0];
+    }
+
+    /**
+     * Estimates of all windows so far and bootstrap percentile intervals.
+     */
+    private void estimate(Random random) {
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++) all[i] = i;
+        if (n == n_windows) {
+            long n_known_covered = 0, n_duplicates = 0, n_reads = unplaced_reads;
+            for (int i = 0; i < n; i++) {
+                n_known_covered += known_covered[i];
+                n_duplicates += duplicates[i];
+                n_reads += reads[i];
+            }
+            effective = exact(all_known == 0 ? Double.NaN : ReferencePanelSite.getEffectiveCoverage(all_known, n_known_covered));
+            coverage = exact(ratio(covered, length, all));
+            duplication = exact(n_reads == 0 ? Double.NaN : (double) n_duplicates / n_reads);
+            return;
+        }
+        double[][] boot = new double[3][BOOTSTRAP];
+        int[] pick = new int[n];
+        for (int b = 0; b < BOOTSTRAP; b++) {
+            for (int i = 0; i < n; i++) pick[i] = random.nextInt(n);
+            boot[0][b] = effective_coverage(pick);
+            boot[1][b] = ratio(covered, length, pick);
+            boot[2][b] = ratio(duplicates, reads, pick);
+        }
+        effective = interval(effective_coverage(all), boot[0]);
+        coverage = interval(ratio(covered, length, all), boot[1]);
+        duplication = interval(ratio(duplicates, reads, all), boot[2]);
+    }
+
+    private double effective_coverage(int[] pick) {
+        double f = ratio(known_covered, known, pick);
+        return Double.isNaN(f) ? Double.NaN : -Math.log(1 - f);
+    }
+
+    private static double ratio(long[] numerator, long[] denominator, int[] pick) {
+        long a = 0, b = 0;
+        for (int i : pick) {
+            a += numerator[i];
+            b += denominator[i];
+        }
+        return b == 0 ? Double.NaN : (double) a / b;
+    }
+
+    private static double[] exact(double value) {
+        return new double[]{value, value, value};
+    }
+
+    private static double[] interval(double estimate, double[] boot) {
+        double[] values = Arrays.stream(boot).filter(v -> !Double.isNaN(v)).sorted().toArray();
+        if (values.length == 0) return new double[]{estimate, Double.NaN, Double.NaN};
+        return new double[]{estimate, values[(int) (0.025 * (values.length - 1))], values[(int) Math.ceil(0.975 * (values.length - 1))]};
+    }
+
+    private static String format(double[] figure) {
+        if (Double.isNaN(figure[0])) return "-";
+        return StatsUtils.realFormat(figure[0], 2) + " [" + StatsUtils.realFormat(figure[1], 2) + ", "
+                + StatsUtils.realFormat(figure[2], 2) + "]";
+    }
+
+    /**
+     * The rows of a sampled run, estimates with their 95% intervals.
+     */
+    Pair<List<String>, List<String>> getReportResult(long referenceLength) {
+        final List<String> names = new ArrayList<>();
+        final List<String> values = new ArrayList<>();
+        names.add("Sampled Windows");
+        values.add(n + " of " + n_windows + " (" + StatsUtils.divide(sampled_bases, referenceLength) + ", seed " + seed + ")");
+        String kind = n == n_windows ? " (exact)" : " (estimate)";
+        names.add("Effective Coverage" + kind);
+        values.add(format(effective));
+        names.add("Coverage 1X" + kind);
+        values.add(format(coverage));
+        names.add("Duplication Rate" + kind);
+        values.add(format(duplication));
+        return Pair.create(names, values);
+    }
+}
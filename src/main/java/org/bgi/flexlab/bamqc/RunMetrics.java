@@ -0,0 +1,348 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.util.zip.InflaterFactory;
+import org.bgi.flexlab.bamqc.util.CoverageSweep;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Counters and timers of a running QC, written to a file every few seconds and once at the end,
+ * as Prometheus text or, for a path ending in .json, as JSON. The file is replaced by a rename,
+ * so a textfile collector polling it never reads half of it.
+ *
+ * Every record read and every merged interval handed to a sink is timed, so reading, coverage
+ * marking and site checking add up with record handling, what is left of them, to the loop time.
+ * Decompression is the BGZF inflate time summed over the threads doing it: with htsjdk's reader
+ * it is part of reading, with the raw decoder it runs on worker threads and the reading thread
+ * only waits for them, which is decompress_wait.
+ * Progress is the compressed offset of the last record against the BAM size for a single pass,
+ * or the finished shards against all shards.
+ */
+public class RunMetrics {
+    final private static int PUBLISH_EVERY = 4096;
+
+    private final String path;
+    private final String input;
+    private final boolean json;
+    private final long startNanos = System.nanoTime();
+    private ScheduledExecutorService writer;
+    private boolean warned = false;
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong bases = new AtomicLong();
+    private final AtomicLong loopNanos = new AtomicLong();
+    private final AtomicLong readNanos = new AtomicLong();
+    // added to for every interval and block, by many threads in a sharded run
+    private final LongAdder coverageNanos = new LongAdder();
+    private final LongAdder sitesNanos = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+    private final AtomicLong coverageBytes = new AtomicLong();
+    private final AtomicLong peakCoverageBytes = new AtomicLong();
+    private final Map<String, Long> contigNanos = new ConcurrentHashMap<>();
+    private volatile long done = 0;
+    private volatile long total = -1;
+    private volatile boolean finished = false;
+    private final List<BamStreamReader> streams = new CopyOnWriteArrayList<>();
+    private volatile ReferencePanelSite panel = null;
+
+    public RunMetrics(String path, String input) {
+        this.path = path;
+        this.input = input;
+        this.json = path.toLowerCase(Locale.ROOT).endsWith(".json");
+    }
+
+    /**
+     * Write the metrics every interval seconds from now on.
+     */
+    public void start(int interval) {
+        writer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "bamqc-metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        writer.scheduleAtFixedRate(this::write, 0, Math.max(1, interval), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop the periodic writes and write the final values.
+     */
+    public void finish() {
+        finished = true;
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        write();
+    }
+
+    void setPanel(ReferencePanelSite panel) {
+        this.panel = panel;
+    }
+
+    /**
+     * The BAM is also read through this reader, for its decompression timers.
+     */
+    void addStream(BamStreamReader stream) {
+        streams.add(stream);
+    }
+
+    /**
+     * Inflaters for htsjdk's readers that time the BGZF blocks they inflate.
+     */
+    InflaterFactory inflaterFactory() {
+        return new InflaterFactory() {
+            @Override
+            public Inflater makeInflater(boolean gzipCompatible) {
+                return new Inflater(gzipCompatible) {
+                    @Override
+                    public int inflate(byte[] b, int off, int len) throws DataFormatException {
+                        long t = System.nanoTime();
+                        try {
+                            return super.inflate(b, off, len);
+                        } finally {
+                            inflateNanos.add(System.nanoTime() - t);
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Time of the counting loop, reading included.
+     */
+    void addLoop(long nanos) {
+        loopNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Progress is done out of total, in the unit of the caller; a negative total is unknown.
+     */
+    void setTotal(long total) {
+        this.total = total;
+    }
+
+    void addDone(long n) {
+        synchronized (this) {
+            done += n;
+        }
+    }
+
+    void addSites(long nanos) {
+        sitesNanos.add(nanos);
+    }
+
+    void addContig(String chr, long nanos) {
+        contigNanos.merge(chr, nanos, Long::sum);
+    }
+
+    /**
+     * A coverage buffer of this size was allocated and is held until the end of the run.
+     */
+    void addCoverageBuffer(long bytes) {
+        long now = coverageBytes.addAndGet(bytes);
+        peakCoverageBytes.accumulateAndGet(now, Math::max);
+    }
+
+    /**
+     * Count and time the records of a source. With offsets the compressed offset of the records
+     * read is taken as the progress, against a total in bytes.
+     */
+    BamRecord.Source time(final BamRecord.Source source, final boolean offsets) {
+        return time(source, offsets, Integer.MIN_VALUE);
+    }
+
+    /**
+     * As above, counting only the records starting at or after first, which a shard owns. The
+     * records before it only overlap the shard and are counted by the shard they start in.
+     */
+    BamRecord.Source time(final BamRecord.Source source, final boolean offsets, final int first) {
+        return new BamRecord.Source() {
+            long n = 0;
+            long n_bases = 0;
+            long nanos = 0;
+            long calls = 0;
+            long position = -1;
+
+            @Override
+            public boolean next(BamRecord record) throws IOException {
+                long t = System.nanoTime();
+                boolean more = source.next(record);
+                nanos += System.nanoTime() - t;
+                if (!more) {
+                    publish();
+                    return false;
+                }
+                if (record.alignmentStart >= first) {
+                    n++;
+                    n_bases += record.readLength;
+                }
+                if (record.filePointer >= 0) position = record.filePointer >>> 16;
+                if (++calls % PUBLISH_EVERY == 0) publish();
+                return true;
+            }
+
+            private void publish() {
+                readNanos.addAndGet(nanos);
+                nanos = 0;
+                records.addAndGet(n);
+                bases.addAndGet(n_bases);
+                n = 0;
+                n_bases = 0;
+                if (offsets && position >= 0) done = position;
+            }
+        };
+    }
+
+    /**
+     * Time the merged intervals handed to a sink, as coverage marking or, for the streaming
+     * site cursor, as site checking.
+     */
+    CoverageSweep.Sink time(final CoverageSweep.Sink sink, final boolean sites) {
+        if (sink == null) return null;
+        final LongAdder nanos = sites ? sitesNanos : coverageNanos;
+        return (start, end) -> {
+            long t = System.nanoTime();
+            sink.cover(start, end);
+            nanos.add(System.nanoTime() - t);
+        };
+    }
+
+    private synchronized void write() {
+        File file = new File(path).getAbsoluteFile();
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            try (PrintWriter out = new PrintWriter(tmp, "UTF-8")) {
+                if (json) write_json(out);
+                else write_prometheus(out);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (!warned) System.err.println("[WARN] failed to write metrics " + path + ": " + e.getMessage());
+            warned = true;
+        }
+    }
+
+    private Map<String, Double> phases() {
+        Map<String, Double> phases = new TreeMap<>();
+        double read = seconds(readNanos.get());
+        double coverage = seconds(coverageNanos.sum());
+        double sites = seconds(sitesNanos.sum());
+        phases.put("read", read);
+        phases.put("coverage", coverage);
+        phases.put("sites", sites);
+        phases.put("handling", Math.max(0, seconds(loopNanos.get()) - read - coverage - sites));
+        long inflate = inflateNanos.sum();
+        long wait = 0;
+        for (BamStreamReader reader : streams) {
+            inflate += reader.getInflateNanos();
+            wait += reader.getWaitNanos();
+        }
+        phases.put("decompress", seconds(inflate));
+        if (!streams.isEmpty()) phases.put("decompress_wait", seconds(wait));
+        ReferencePanelSite rps = panel;
+        if (rps != null) phases.put("panel_load", seconds(rps.loadNanos()));
+        return phases;
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private double progress() {
+        if (finished) return 1;
+        long t = total;
+        return t > 0 ? Math.min(1, (double) done / t) : Double.NaN;
+    }
+
+    private void write_prometheus(PrintWriter out) {
+        double elapsed = seconds(System.nanoTime() - startNanos);
+        String label = "input=\"" + escape(input) + "\"";
+        metric(out, "bamqc_records_total", "counter", "Records read from the BAM.", label, records.get());
+        metric(out, "bamqc_bases_total", "counter", "Read bases of the records read.", label, bases.get());
+        metric(out, "bamqc_records_per_second", "gauge", "Records read per second of the run.", label, records.get() / elapsed);
+        metric(out, "bamqc_bases_per_second", "gauge", "Read bases per second of the run.", label, bases.get() / elapsed);
+        metric(out, "bamqc_elapsed_seconds", "gauge", "Time since the run started.", label, elapsed);
+        out.println("# HELP bamqc_phase_seconds Time spent by phase, summed over threads.");
+        out.println("# TYPE bamqc_phase_seconds gauge");
+        for (Map.Entry<String, Double> e : phases().entrySet())
+            out.println("bamqc_phase_seconds{" + label + ",phase=\"" + e.getKey() + "\"} " + number(e.getValue()));
+        out.println("# HELP bamqc_contig_seconds Time spent on the reads of a contig, summed over threads.");
+        out.println("# TYPE bamqc_contig_seconds gauge");
+        for (Map.Entry<String, Long> e : new TreeMap<>(contigNanos).entrySet())
+            out.println("bamqc_contig_seconds{" + label + ",contig=\"" + escape(e.getKey()) + "\"} " + number(seconds(e.getValue())));
+        metric(out, "bamqc_coverage_buffer_peak_bytes", "gauge", "Largest size of the coverage buffers held at once.", label, peakCoverageBytes.get());
+        double progress = progress();
+        if (!Double.isNaN(progress)) {
+            metric(out, "bamqc_progress_ratio", "gauge", "Fraction of the input processed.", label, progress);
+            if (progress > 0) metric(out, "bamqc_eta_seconds", "gauge", "Estimated time left.", label, elapsed * (1 - progress) / progress);
+        }
+        metric(out, "bamqc_finished", "gauge", "1 once the run is complete.", label, finished ? 1 : 0);
+    }
+
+    private static void metric(PrintWriter out, String name, String type, String help, String label, double value) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " " + type);
+        out.println(name + "{" + label + "} " + number(value));
+    }
+
+    private void write_json(PrintWriter out) {
+        double elapsed = seconds(System.nanoTime() - startNanos);
+        double progress = progress();
+        out.println("{");
+        out.println("  \"input\": \"" + escape(input) + "\",");
+        out.println("  \"records\": " + records.get() + ",");
+        out.println("  \"bases\": " + bases.get() + ",");
+        out.println("  \"records_per_second\": " + number(records.get() / elapsed) + ",");
+        out.println("  \"bases_per_second\": " + number(bases.get() / elapsed) + ",");
+        out.println("  \"elapsed_seconds\": " + number(elapsed) + ",");
+        out.println("  \"phase_seconds\": " + json_object(phases()) + ",");
+        Map<String, Double> contigs = new TreeMap<>();
+        for (Map.Entry<String, Long> e : contigNanos.entrySet()) contigs.put(e.getKey(), seconds(e.getValue()));
+        out.println("  \"contig_seconds\": " + json_object(contigs) + ",");
+        out.println("  \"coverage_buffer_peak_bytes\": " + peakCoverageBytes.get() + ",");
+        out.println("  \"progress\": " + (Double.isNaN(progress) ? "null" : number(progress)) + ",");
+        out.println("  \"eta_seconds\": " + (Double.isNaN(progress) || progress == 0 ? "null" : number(elapsed * (1 - progress) / progress)) + ",");
+        out.println("  \"finished\": " + finished);
+        out.println("}");
+    }
+
+    private static String json_object(Map<String, Double> values) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Double> e : values.entrySet()) {
+            if (sb.length() > 1) sb.append(", ");
+            sb.append('"').append(escape(e.getKey())).append("\": ").append(number(e.getValue()));
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,139 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A 1-based, inclusive range of one contig together with the counters collected for it.
+ * Reads are owned by the shard holding their alignment start; coverage is clipped to the
+ * shard so that neighbouring shards never count a base or a site twice.
+ */
+public class Shard {
+    final String contig;
+    final int start;
+    final int end;
+
+    long totalReads = 0;
+    long totalBases = 0;
+    long alignedReads = 0;
+    long duplicatedReads = 0;
+    long numSecondaryAlignments = 0;
+    long knownSitesCovered = 0;
+    // bases of the reads ahead of the first mapped one, which a single pass adds to the contig visited before
+    long leadingBases = 0;
+    final ContigStats stats;
+    // null unless read groups are followed
+    ReadGroupStats groups = null;
+    // sites of the further panels on the contig and those covered in the shard, null without any
+    long[] panelKnown = null;
+    long[] panelCovered = null;
+    // null unless MAPQ tiers are counted
+    MapqTiers tiers = null;
+
+    public Shard(String contig, int start, int end) {
+        this.contig = contig;
+        this.start = start;
+        this.end = end;
+        this.stats = new ContigStats(contig, end - start + 1);
+    }
+
+    public int length() {
+        return end - start + 1;
+    }
+
+    public boolean isUnmapped() {
+        return contig == null;
+    }
+
+    /**
+     * Shard for the reads without any coordinate at the end of the file.
+     */
+    public static Shard unmapped() {
+        return new Shard(null, 0, -1);
+    }
+
+    /**
+     * Split every contig of the dictionary into evenly sized ranges of at most shardSize bases.
+     */
+    public static List<Shard> split(SAMSequenceDictionary dict, int shardSize) {
+        List<Shard> shards = new ArrayList<>();
+        for (SAMSequenceRecord seq : dict.getSequences()) {
+            int len = seq.getSequenceLength();
+            int n = (int) Math.max(1, ((long) len + shardSize - 1) / shardSize);
+            long step = ((long) len + n - 1) / n;
+            for (int i = 0; i < n; i++) {
+                long s = 1 + i * step;
+                long e = Math.min(len, (i + 1) * step);
+                if (s > e) break;
+                shards.add(new Shard(seq.getSequenceName(), (int) s, (int) e));
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Read the regions of a shard file, one per line: a BED range "contig start end" with a
+     * 0-based start, a whole contig, or "*" for the unmapped reads. Every region is split into
+     * ranges of at most shardSize bases and the shards are returned in genome order.
+     */
+    public static List<Shard> readRegions(String path, SAMSequenceDictionary dict, int shardSize) throws IOException {
+        List<Shard> shards = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+                    continue;
+                String[] field = line.split("\\s+");
+                if (field[0].equals("*")) {
+                    shards.add(unmapped());
+                    continue;
+                }
+                SAMSequenceRecord seq = dict.getSequence(field[0]);
+                if (seq == null) throw new IOException("unknown contig " + field[0]);
+                long start = 1;
+                long end = seq.getSequenceLength();
+                if (field.length >= 3) {
+                    start = Long.parseLong(field[1]) + 1;
+                    end = Math.min(end, Long.parseLong(field[2]));
+                } else if (field.length != 1) {
+                    throw new IOException("bad region line: " + line);
+                }
+                long len = end - start + 1;
+                if (len <= 0) continue;
+                int n = (int) Math.max(1, (len + shardSize - 1) / shardSize);
+                long step = (len + n - 1) / n;
+                for (long s = start; s <= end; s += step)
+                    shards.add(new Shard(seq.getSequenceName(), (int) s, (int) Math.min(end, s + step - 1)));
+            }
+        }
+        shards.sort(genomeOrder(dict));
+        for (int i = 1; i < shards.size(); i++) {
+            Shard pre = shards.get(i - 1);
+            Shard cur = shards.get(i);
+            if (cur.isUnmapped() ? pre.isUnmapped() : cur.contig.equals(pre.contig) && cur.start <= pre.end)
+                throw new IOException("regions " + pre + " and " + cur + " overlap");
+        }
+        return shards;
+    }
+
+    /**
+     * Contigs in dictionary order then start, the unmapped shard last.
+     */
+    public static Comparator<Shard> genomeOrder(SAMSequenceDictionary dict) {
+        return Comparator.comparingInt((Shard shard) -> shard.isUnmapped() ? Integer.MAX_VALUE : dict.getSequenceIndex(shard.contig))
+                .thenComparingInt(shard -> shard.start);
+    }
+
+    @Override
+    public String toString() {
+        return isUnmapped() ? "*" : contig + ":" + start + "-" + end;
+    }
+}
@@ -0,0 +1,220 @@
+package org.bgi.flexlab.bamqc;
+
+import org.bgi.flexlab.bamqc.util.SiteCursor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Precompiled reference panel: the sorted, distinct site positions of every contig,
+ * stored as varint encoded deltas so a QC run maps the file instead of parsing VCFs.
+ *
+ * <pre>
+ * magic "BQSI", int version, int n_contigs
+ * n_contigs x { UTF name, int n_sites, long n_records, long offset, int n_bytes }
+ * position data, offsets relative to the end of the header
+ * </pre>
+ * n_records is the number of VCF records before deduplication, which is what a contig
+ * without any read contributes to the known sites.
+ */
+public class SiteIndex {
+    final private static byte[] MAGIC = {'B', 'Q', 'S', 'I'};
+    final private static int VERSION = 1;
+
+    private final String path;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long data_start;
+
+    private static class Entry {
+        int n_sites;
+        long n_records;
+        long offset;
+        int n_bytes;
+    }
+
+    public SiteIndex(String path) throws IOException {
+        this.path = path;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(path)));
+             DataInputStream in = new DataInputStream(counter)) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC))
+                throw new IOException(path + " is not a bamqc site index");
+            int version = in.readInt();
+            if (version != VERSION)
+                throw new IOException("unsupported site index version " + version + " in " + path);
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String chr = in.readUTF();
+                Entry e = new Entry();
+                e.n_sites = in.readInt();
+                e.n_records = in.readLong();
+                e.offset = in.readLong();
+                e.n_bytes = in.readInt();
+                entries.put(chr, e);
+            }
+            data_start = counter.count;
+        }
+    }
+
+    public static boolean isSiteIndex(String path) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            return Arrays.equals(magic, MAGIC);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public Set<String> contigs() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public boolean contains(String chr) {
+        return entries.containsKey(chr);
+    }
+
+    public int sites(String chr) {
+        Entry e = entries.get(chr);
+        return e == null ? 0 : e.n_sites;
+    }
+
+    public long records(String chr) {
+        Entry e = entries.get(chr);
+        return e == null ? 0 : e.n_records;
+    }
+
+    /**
+     * Decode the positions of one contig from the mapped file.
+     */
+    public int[] positions(String chr) throws IOException {
+        Entry e = entries.get(chr);
+        if (e == null) return new int[0];
+        int[] positions = new int[e.n_sites];
+        try (FileChannel channel = new RandomAccessFile(path, "r").getChannel()) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, data_start + e.offset, e.n_bytes);
+            int pos = 0;
+            for (int i = 0; i < e.n_sites; i++) {
+                pos += readVarint(buf);
+                positions[i] = pos;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Decode the positions of one contig lazily, keeping only the mapped file region.
+     */
+    public SiteCursor.Positions cursor(String chr) throws IOException {
+        Entry e = entries.get(chr);
+        if (e == null) return SiteCursor.of(new int[0], 0, 0);
+        final MappedByteBuffer buf;
+        try (FileChannel channel = new RandomAccessFile(path, "r").getChannel()) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, data_start + e.offset, e.n_bytes);
+        }
+        final int n_sites = e.n_sites;
+        return new SiteCursor.Positions() {
+            int i = 0;
+            int pos = 0;
+
+            public boolean hasNext() {
+                return i < n_sites;
+            }
+
+            public int next() {
+                i++;
+                pos += readVarint(buf);
+                return pos;
+            }
+        };
+    }
+
+    private static int readVarint(ByteBuffer buf) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Compile the VCFs of a reference panel into a site index.
+     */
+    public static void write(ReferencePanelSite panel, String out) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream head = new DataOutputStream(header);
+        File data_file = File.createTempFile("bamqc", ".sites", new File(out).getAbsoluteFile().getParentFile());
+        data_file.deleteOnExit();
+
+        head.write(MAGIC);
+        head.writeInt(VERSION);
+        head.writeInt(panel.contigs().size());
+        long offset = 0;
+        try (OutputStream data = new BufferedOutputStream(new FileOutputStream(data_file))) {
+            for (String chr : panel.contigs()) {
+                int[] positions = panel.load_sites(chr);
+                ByteArrayOutputStream deltas = new ByteArrayOutputStream();
+                int pre = 0;
+                for (int p : positions) {
+                    writeVarint(deltas, p - pre);
+                    pre = p;
+                }
+                head.writeUTF(chr);
+                head.writeInt(positions.length);
+                head.writeLong(panel.count_sites(chr));
+                head.writeLong(offset);
+                head.writeInt(deltas.size());
+                deltas.writeTo(data);
+                offset += deltas.size();
+                System.err.println("Indexed " + chr + ": " + positions.length + " sites");
+            }
+        }
+
+        try (OutputStream o = new BufferedOutputStream(new FileOutputStream(out));
+             InputStream data = new BufferedInputStream(new FileInputStream(data_file))) {
+            header.writeTo(o);
+            byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = data.read(buf)) > 0) o.write(buf, 0, n);
+        }
+        data_file.delete();
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+/**
+ * Loads the sites of the contigs of a single pass on a background thread, one contig ahead of
+ * the reads, so a contig boundary only waits when parsing the panel is slower than the reads.
+ *
+ * Contigs are loaded in the order of the BAM header. Taking the sites of a contig starts loading
+ * the next one that has sites; when the reads turn to another contig than expected, the load is
+ * redirected to it. Only the contig being loaded is referenced here, a taken array belongs to the
+ * caller and is gone once the contig is counted.
+ */
+public class SitePrefetcher implements Closeable {
+    private final ReferencePanelSite panel;
+    private final List<String> order = new ArrayList<>();
+    private final Map<String, Integer> rank = new HashMap<>();
+    private final ExecutorService loader;
+    private String loading = null;
+    private Future<int[]> pending = null;
+
+    /**
+     * @param wanted the contigs whose sites are still to be counted
+     */
+    public SitePrefetcher(ReferencePanelSite panel, SAMSequenceDictionary dict, Predicate<String> wanted) {
+        this.panel = panel;
+        for (SAMSequenceRecord seq : dict.getSequences()) {
+            if (!wanted.test(seq.getSequenceName())) continue;
+            rank.put(seq.getSequenceName(), order.size());
+            order.add(seq.getSequenceName());
+        }
+        this.loader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "site-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+        if (!order.isEmpty()) expect(order.get(0));
+    }
+
+    /**
+     * Make sure the sites of this contig are the ones being loaded.
+     */
+    public void expect(String chr) {
+        if (chr.equals(loading) || !rank.containsKey(chr)) return;
+        if (pending != null) pending.cancel(false);
+        loading = chr;
+        pending = loader.submit(() -> panel.load_sites(chr));
+    }
+
+    /**
+     * The sites of a contig, then go on loading the next contig of the header.
+     */
+    public int[] take(String chr) {
+        expect(chr);
+        int[] sites;
+        if (chr.equals(loading)) {
+            try {
+                sites = pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SAMException("interrupted loading the sites of " + chr, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new SAMException(e.getCause().getMessage(), e.getCause());
+            }
+            loading = null;
+            pending = null;
+        } else {
+            sites = panel.load_sites(chr);
+        }
+        Integer i = rank.get(chr);
+        if (i != null && i + 1 < order.size()) expect(order.get(i + 1));
+        return sites;
+    }
+
+    @Override
+    public void close() {
+        if (pending != null) pending.cancel(false);
+        pending = null;
+        loader.shutdown();
+    }
+}
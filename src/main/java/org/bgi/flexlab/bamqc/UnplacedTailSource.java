@@ -0,0 +1,73 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.SamReader;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Records of an indexed BAM whose unplaced tail, the reads without any coordinate at the end
+ * of the file, is read by the raw decoder of {@link BamStreamReader} instead of as SAMRecords.
+ * Only the block size, flags and lengths of a tail record are decoded, the rest is skipped.
+ *
+ * The placed records come from the given source until the first unplaced one turns up. The raw
+ * reader then starts at the last linear bin of the index, as htsjdk's queryUnmapped does, and
+ * drops the placed records before the tail, so the first unplaced record is counted once.
+ */
+public class UnplacedTailSource implements BamRecord.Source, Closeable {
+    private final BamRecord.Source placed;
+    private final String bamFile;
+    private final long tailOffset;
+    private final int threads;
+    private ReadGroups readGroups = null;
+    private RunMetrics metrics = null;
+    private BamStreamReader tail = null;
+
+    /**
+     * @param placed the records from the start, or null to read the tail only
+     * @param reader an open reader of the BAM, for its index
+     */
+    public UnplacedTailSource(BamRecord.Source placed, String bamFile, SamReader reader, int threads) {
+        this.placed = placed;
+        this.bamFile = bamFile;
+        this.tailOffset = reader.indexing().getIndex().getStartOfLastLinearBin();
+        this.threads = threads;
+    }
+
+    /**
+     * Resolve the read group of the tail records, none when null.
+     */
+    public void setReadGroups(ReadGroups readGroups) {
+        this.readGroups = readGroups;
+    }
+
+    /**
+     * Add the decompression of the tail to these metrics, none when null.
+     */
+    public void setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean next(BamRecord record) throws IOException {
+        if (tail == null) {
+            if (placed != null) {
+                if (!placed.next(record)) return false;
+                if (record.referenceIndex >= 0) return true;
+            }
+            // without any placed record the index has no linear bin and the tail is the whole file
+            tail = tailOffset < 0 ? new BamStreamReader(bamFile, threads) : BamStreamReader.open(bamFile, threads, tailOffset);
+            tail.setReadGroups(readGroups);
+            if (metrics != null) metrics.addStream(tail);
+        }
+        while (tail.next(record)) {
+            if (record.referenceIndex < 0) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (tail != null) tail.close();
+    }
+}
@@ -0,0 +1,162 @@
+package org.bgi.flexlab.bamqc.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * One bit per reference base, packed into 64-bit words.
+ *
+ * The bitmap is allocated once for the largest contig and {@link #reset(long)} between
+ * contigs, so the heap no longer spikes with a fresh boolean[] per chromosome. The words
+ * can live on the java heap or in a direct buffer outside of it.
+ */
+public class CoverageBitmap {
+    private final LongBuffer words;
+    private final long capacity;
+    private long length;
+
+    /**
+     * @param capacity largest number of bits (positions) the bitmap will ever hold
+     * @param offHeap allocate the words in a direct buffer instead of a long[]
+     */
+    public CoverageBitmap(long capacity, boolean offHeap) {
+        int nWords = wordCount(capacity);
+        if (offHeap) {
+            words = ByteBuffer.allocateDirect(nWords * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+        } else {
+            words = LongBuffer.wrap(new long[nWords]);
+        }
+        this.capacity = capacity;
+        this.length = capacity;
+    }
+
+    private static int wordCount(long nbits) {
+        long n = (nbits + 63) >>> 6;
+        if (n * 8 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("coverage bitmap too large: " + nbits + " bits");
+        return (int) Math.max(n, 1);
+    }
+
+    /**
+     * Clear all bits and set the logical length for the next contig.
+     */
+    public void reset(long length) {
+        if (length > capacity)
+            throw new IllegalArgumentException("length " + length + " exceeds bitmap capacity " + capacity);
+        int used = (int) ((this.length + 63) >>> 6);
+        for (int i = 0; i < used; i++) words.put(i, 0L);
+        this.length = length;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * Bytes held by the words of the bitmap.
+     */
+    public long bytes() {
+        return (long) words.capacity() * 8;
+    }
+
+    private void checkIndex(long pos) {
+        if (pos < 0 || pos >= length)
+            throw new IndexOutOfBoundsException("position " + pos + " out of bounds for length " + length);
+    }
+
+    public boolean get(long pos) {
+        checkIndex(pos);
+        return (words.get((int) (pos >>> 6)) & (1L << pos)) != 0;
+    }
+
+    public void set(long pos) {
+        checkIndex(pos);
+        int w = (int) (pos >>> 6);
+        words.put(w, words.get(w) | (1L << pos));
+    }
+
+    /**
+     * Set every bit in [from, to], both ends inclusive.
+     */
+    public void setRange(long from, long to) {
+        if (to < from) return;
+        checkIndex(from);
+        checkIndex(to);
+        int w0 = (int) (from >>> 6);
+        int w1 = (int) (to >>> 6);
+        long m0 = -1L << from;
+        long m1 = -1L >>> (63 - (to & 63));
+        if (w0 == w1) {
+            words.put(w0, words.get(w0) | (m0 & m1));
+            return;
+        }
+        words.put(w0, words.get(w0) | m0);
+        for (int w = w0 + 1; w < w1; w++) words.put(w, -1L);
+        words.put(w1, words.get(w1) | m1);
+    }
+
+    /**
+     * First set bit at or after from, -1 when there is none within the logical length.
+     */
+    public long nextSetBit(long from) {
+        if (from < 0) from = 0;
+        if (from >= length) return -1;
+        int used = (int) ((length + 63) >>> 6);
+        int w = (int) (from >>> 6);
+        long word = words.get(w) & (-1L << from);
+        while (word == 0) {
+            if (++w >= used) return -1;
+            word = words.get(w);
+        }
+        long pos = ((long) w << 6) + Long.numberOfTrailingZeros(word);
+        return pos < length ? pos : -1;
+    }
+
+    /**
+     * First clear bit at or after from, the logical length when there is none.
+     */
+    public long nextClearBit(long from) {
+        if (from < 0) from = 0;
+        if (from >= length) return length;
+        int used = (int) ((length + 63) >>> 6);
+        int w = (int) (from >>> 6);
+        long word = ~words.get(w) & (-1L << from);
+        while (word == 0) {
+            if (++w >= used) return length;
+            word = ~words.get(w);
+        }
+        return Math.min(((long) w << 6) + Long.numberOfTrailingZeros(word), length);
+    }
+
+    /**
+     * Number of set bits over the whole logical length.
+     */
+    public long cardinality() {
+        int used = (int) ((length + 63) >>> 6);
+        long n = 0;
+        for (int i = 0; i < used; i++) n += Long.bitCount(words.get(i));
+        return n;
+    }
+
+    /**
+     * Number of set bits in [from, to), clamped to the logical length.
+     */
+    public long cardinality(long from, long to) {
+        from = Math.max(from, 0);
+        to = Math.min(to, length);
+        if (to <= from) return 0;
+        int w0 = (int) (from >>> 6);
+        int w1 = (int) ((to - 1) >>> 6);
+        long m0 = -1L << from;
+        long m1 = -1L >>> (63 - ((to - 1) & 63));
+        if (w0 == w1) return Long.bitCount(words.get(w0) & m0 & m1);
+        long n = Long.bitCount(words.get(w0) & m0);
+        for (int w = w0 + 1; w < w1; w++) n += Long.bitCount(words.get(w));
+        return n + Long.bitCount(words.get(w1) & m1);
+    }
+}
@@ -0,0 +1,148 @@
+package org.bgi.flexlab.bamqc.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The covered bases of a contig as sorted, disjoint runs [start, end], both ends inclusive.
+ *
+ * Runs are what the {@link CoverageSweep} hands to its sink, or what is left of a coverage bitmap
+ * once a contig is done, and take a few bytes per run instead of a bit per base. They are saved
+ * as varint gaps and lengths, and two of them OR into the coverage of both.
+ *
+ * Runs added out of order are sorted and merged the next time they are read.
+ */
+public class CoverageRuns implements CoverageSweep.Sink {
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int size = 0;
+    private boolean sorted = true;
+
+    /**
+     * The runs of the set bits of a bitmap, bit b being position b + offset.
+     */
+    public static CoverageRuns of(CoverageBitmap coverage, long offset) {
+        CoverageRuns runs = new CoverageRuns();
+        long from = coverage.nextSetBit(0);
+        while (from >= 0) {
+            long to = coverage.nextClearBit(from);
+            runs.cover(from + offset, to - 1 + offset);
+            from = coverage.nextSetBit(to);
+        }
+        return runs;
+    }
+
+    @Override
+    public void cover(long start, long end) {
+        if (end < start) return;
+        if (size > 0 && sorted) {
+            if (start < starts[size - 1]) {
+                sorted = false;
+            } else if (start <= (long) ends[size - 1] + 1) {
+                ends[size - 1] = (int) Math.max(ends[size - 1], end);
+                return;
+            }
+        }
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = (int) start;
+        ends[size++] = (int) end;
+    }
+
+    /**
+     * Add every run of the other.
+     */
+    public void addAll(CoverageRuns other) {
+        other.normalize();
+        for (int i = 0; i < other.size; i++) cover(other.starts[i], other.ends[i]);
+    }
+
+    /**
+     * Sort and merge runs that were added out of order.
+     */
+    private void normalize() {
+        if (sorted) return;
+        long[] runs = new long[size];
+        for (int i = 0; i < size; i++) runs[i] = (long) starts[i] << 32 | (ends[i] & 0xffffffffL);
+        Arrays.sort(runs);
+        size = 0;
+        sorted = true;
+        for (long run : runs) cover(run >>> 32, (int) run);
+    }
+
+    public int size() {
+        normalize();
+        return size;
+    }
+
+    /**
+     * Number of covered bases.
+     */
+    public long cardinality() {
+        normalize();
+        long n = 0;
+        for (int i = 0; i < size; i++) n += ends[i] - starts[i] + 1;
+        return n;
+    }
+
+    /**
+     * Number of the sorted positions that are covered.
+     */
+    public long countCovered(int[] positions) {
+        normalize();
+        long n = 0;
+        int r = 0;
+        for (int p : positions) {
+            while (r < size && ends[r] < p) r++;
+            if (r == size) break;
+            if (starts[r] <= p) n++;
+        }
+        return n;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        normalize();
+        out.writeInt(size);
+        int pre = 0;
+        for (int i = 0; i < size; i++) {
+            writeVarint(out, starts[i] - pre);
+            writeVarint(out, ends[i] - starts[i]);
+            pre = ends[i];
+        }
+    }
+
+    public static CoverageRuns read(DataInput in) throws IOException {
+        CoverageRuns runs = new CoverageRuns();
+        int n = in.readInt();
+        int pre = 0;
+        for (int i = 0; i < n; i++) {
+            int start = pre + readVarint(in);
+            int end = start + readVarint(in);
+            runs.cover(start, end);
+            pre = end;
+        }
+        return runs;
+    }
+
+    private static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("malformed varint");
+    }
+}
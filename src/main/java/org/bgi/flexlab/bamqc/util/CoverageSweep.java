@@ -0,0 +1,150 @@
+package org.bgi.flexlab.bamqc.util;
+
+import java.util.Arrays;
+
+/**
+ * Running union of the alignment intervals of a coordinate sorted contig.
+ *
+ * Each interval costs O(1): it either extends the current merged interval or closes it,
+ * and the number of covered bases is updated from the part that sticks out. Closed
+ * intervals are handed to a {@link Sink} once, so consumers such as the coverage bitmap
+ * see one write per merged interval instead of one per base of every read.
+ *
+ * An interval starting before the current one means the input is not sorted; it is then
+ * passed to the sink as is and {@link #isSorted()} turns false, the covered count being
+ * unreliable from that point on.
+ *
+ * Intervals that start after the current read, such as the aligned blocks after a deletion or
+ * a skipped region, are {@link #defer(long, long) deferred} in a small heap and merged in once
+ * the sweep reaches their start, which keeps a sorted input sorted.
+ */
+public class CoverageSweep {
+    /**
+     * Receives closed intervals, both ends inclusive, in increasing order when sorted.
+     */
+    public interface Sink {
+        void cover(long start, long end);
+    }
+
+    private Sink sink;
+    private long start;
+    private long end;
+    private long covered;
+    private boolean sorted;
+    private long[] pendingStart = new long[16];
+    private long[] pendingEnd = new long[16];
+    private int pending = 0;
+
+    public CoverageSweep() {
+        reset(null);
+    }
+
+    /**
+     * Drop the current state and start a new contig feeding the given sink, which may be null.
+     */
+    public void reset(Sink sink) {
+        this.sink = sink;
+        start = 0;
+        end = -1;
+        covered = 0;
+        sorted = true;
+        pending = 0;
+    }
+
+    /**
+     * Add the interval [s, e], both ends inclusive.
+     */
+    public void add(long s, long e) {
+        while (pending > 0 && pendingStart[0] <= s) merge(poll());
+        if (e < s) return;
+        merge(s, e);
+    }
+
+    /**
+     * Add the interval [s, e] once the intervals added start at s or later.
+     */
+    public void defer(long s, long e) {
+        if (e < s) return;
+        if (pending == pendingStart.length) {
+            pendingStart = Arrays.copyOf(pendingStart, pending * 2);
+            pendingEnd = Arrays.copyOf(pendingEnd, pending * 2);
+        }
+        int i = pending++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (pendingStart[parent] <= s) break;
+            pendingStart[i] = pendingStart[parent];
+            pendingEnd[i] = pendingEnd[parent];
+            i = parent;
+        }
+        pendingStart[i] = s;
+        pendingEnd[i] = e;
+    }
+
+    /**
+     * Remove the deferred interval starting first, returning the index it was copied to.
+     */
+    private int poll() {
+        long s = pendingStart[0];
+        long e = pendingEnd[0];
+        long last_s = pendingStart[--pending];
+        long last_e = pendingEnd[pending];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= pending) break;
+            if (child + 1 < pending && pendingStart[child + 1] < pendingStart[child]) child++;
+            if (last_s <= pendingStart[child]) break;
+            pendingStart[i] = pendingStart[child];
+            pendingEnd[i] = pendingEnd[child];
+            i = child;
+        }
+        pendingStart[i] = last_s;
+        pendingEnd[i] = last_e;
+        // park the removed interval past the heap
+        pendingStart[pending] = s;
+        pendingEnd[pending] = e;
+        return pending;
+    }
+
+    private void merge(int slot) {
+        merge(pendingStart[slot], pendingEnd[slot]);
+    }
+
+    private void merge(long s, long e) {
+        if (s < start) {
+            sorted = false;
+            if (sink != null) sink.cover(s, e);
+            return;
+        }
+        if (s > end + 1) {
+            if (end >= start && sink != null) sink.cover(start, end);
+            start = s;
+            end = e;
+            covered += e - s + 1;
+        } else if (e > end) {
+            covered += e - end;
+            end = e;
+        }
+    }
+
+    /**
+     * Hand the last merged interval to the sink at the end of a contig; the covered count is kept.
+     */
+    public void flush() {
+        while (pending > 0) merge(poll());
+        if (end >= start && sink != null) sink.cover(start, end);
+        end = start - 1;
+    }
+
+    /**
+     * Bases covered by the union of all intervals added since the last reset.
+     */
+    public long covered() {
+        return covered;
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+}
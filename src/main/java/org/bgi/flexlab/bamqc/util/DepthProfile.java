@@ -0,0 +1,211 @@
+package org.bgi.flexlab.bamqc.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per-base depth of a contig range, accumulated without any per-base counter.
+ *
+ * Every interval is turned into a +1 event at its start and a -1 event after its end; the
+ * events wait in a heap and are replayed in position order once the reads have moved past
+ * them, which yields runs of constant depth. A run adds its length to the depth histogram,
+ * whose last bucket saturates at {@link #MAX_DEPTH}, and its depth sum to the fixed-size
+ * bins it overlaps. The heap holds two events per read overlapping the current position.
+ */
+public class DepthProfile {
+    final public static int MAX_DEPTH = 1000;
+
+    private final long start;
+    private final long end;
+    private final int binSize;
+    private final long firstBin;
+    private long[] histogram = new long[16];
+    private final long[] binDepth;
+    private final long[] binCovered;
+
+    // events as position << 1 | 1 for a start and position << 1 for an end
+    private long[] events = new long[64];
+    private int n_events = 0;
+    private long pos;
+    private int depth = 0;
+    private boolean sorted = true;
+
+    /**
+     * Depth of the 1-based inclusive range [start, end], summed into bins of the whole contig.
+     */
+    public DepthProfile(long start, long end, int binSize) {
+        this.start = start;
+        this.end = end;
+        this.binSize = binSize;
+        this.firstBin = (start - 1) / binSize;
+        int bins = (int) ((end - 1) / binSize - firstBin + 1);
+        this.binDepth = new long[Math.max(bins, 0)];
+        this.binCovered = new long[Math.max(bins, 0)];
+        this.pos = start;
+    }
+
+    /**
+     * Save a finished profile, the pending events are not kept.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeLong(start);
+        out.writeLong(end);
+        out.writeInt(binSize);
+        out.writeBoolean(sorted);
+        out.writeInt(histogram.length);
+        for (long n : histogram) out.writeLong(n);
+        for (int i = 0; i < binDepth.length; i++) {
+            out.writeLong(binDepth[i]);
+            out.writeLong(binCovered[i]);
+        }
+    }
+
+    public static DepthProfile read(DataInput in) throws IOException {
+        DepthProfile profile = new DepthProfile(in.readLong(), in.readLong(), in.readInt());
+        profile.sorted = in.readBoolean();
+        profile.histogram = new long[in.readInt()];
+        for (int d = 0; d < profile.histogram.length; d++) profile.histogram[d] = in.readLong();
+        for (int i = 0; i < profile.binDepth.length; i++) {
+            profile.binDepth[i] = in.readLong();
+            profile.binCovered[i] = in.readLong();
+        }
+        profile.pos = profile.end + 1;
+        return profile;
+    }
+
+    public int binSize() {
+        return binSize;
+    }
+
+    /**
+     * Add the interval [s, e], both ends inclusive, which must not start before the
+     * position last passed to {@link #advance(long)}.
+     */
+    public void add(long s, long e) {
+        if (e < s) return;
+        if (s < pos) sorted = false;
+        push(s << 1 | 1);
+        push((e + 1) << 1);
+    }
+
+    /**
+     * Replay the events up to the given position, no interval added later may start before it.
+     */
+    public void advance(long to) {
+        while (n_events > 0 && events[0] >> 1 <= to) apply(poll());
+    }
+
+    /**
+     * Replay all events left at the end of the range.
+     */
+    public void finish() {
+        while (n_events > 0) apply(poll());
+    }
+
+    /**
+     * False when an interval started before the depth was already resolved, the profile is then wrong.
+     */
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    private void apply(long event) {
+        long at = event >> 1;
+        if (at > pos) {
+            run(pos, at, depth);
+            pos = at;
+        }
+        depth += (event & 1) == 1 ? 1 : -1;
+    }
+
+    /**
+     * Account the bases [from, to) at depth d.
+     */
+    private void run(long from, long to, int d) {
+        if (d <= 0) return;
+        from = Math.max(from, start);
+        to = Math.min(to, end + 1);
+        if (to <= from) return;
+        int bucket = Math.min(d, MAX_DEPTH);
+        if (bucket >= histogram.length)
+            histogram = Arrays.copyOf(histogram, Math.min(MAX_DEPTH + 1, Math.max(bucket + 1, histogram.length * 2)));
+        histogram[bucket] += to - from;
+        while (from < to) {
+            long bin = (from - 1) / binSize;
+            long bin_end = Math.min(to, (bin + 1) * binSize + 1);
+            int i = (int) (bin - firstBin);
+            binDepth[i] += (bin_end - from) * d;
+            binCovered[i] += bin_end - from;
+            from = bin_end;
+        }
+    }
+
+    private void push(long event) {
+        if (n_events == events.length) events = Arrays.copyOf(events, n_events * 2);
+        int i = n_events++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (events[parent] <= event) break;
+            events[i] = events[parent];
+            i = parent;
+        }
+        events[i] = event;
+    }
+
+    private long poll() {
+        long first = events[0];
+        long last = events[--n_events];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n_events) break;
+            if (child + 1 < n_events && events[child + 1] < events[child]) child++;
+            if (last <= events[child]) break;
+            events[i] = events[child];
+            i = child;
+        }
+        events[i] = last;
+        return first;
+    }
+
+    /**
+     * Add the histogram and bins of a profile over a part of this range.
+     */
+    public void add(DepthProfile other) {
+        if (other.histogram.length > histogram.length) histogram = Arrays.copyOf(histogram, other.histogram.length);
+        for (int d = 0; d < other.histogram.length; d++) histogram[d] += other.histogram[d];
+        int offset = (int) (other.firstBin - firstBin);
+        for (int i = 0; i < other.binDepth.length; i++) {
+            binDepth[offset + i] += other.binDepth[i];
+            binCovered[offset + i] += other.binCovered[i];
+        }
+        sorted &= other.sorted;
+    }
+
+    /**
+     * Bases at exactly depth d, d > 0; the last bucket holds every depth from {@link #MAX_DEPTH} on.
+     */
+    public long bases(int d) {
+        return d < histogram.length ? histogram[d] : 0;
+    }
+
+    public int bins() {
+        return binDepth.length;
+    }
+
+    /**
+     * Sum of the depth over the bases of bin i.
+     */
+    public long binDepth(int i) {
+        return binDepth[i];
+    }
+
+    /**
+     * Bases of bin i covered at least once.
+     */
+    public long binCovered(int i) {
+        return binCovered[i];
+    }
+}
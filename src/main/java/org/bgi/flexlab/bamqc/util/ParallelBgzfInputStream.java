@@ -0,0 +1,237 @@
+package org.bgi.flexlab.bamqc.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompressed view of a BGZF stream whose blocks are inflated on a pool of worker threads.
+ *
+ * A reader thread cuts the compressed stream into blocks and submits each of them to the
+ * pool; the pending blocks are queued in file order in a bounded queue, so at most a fixed
+ * number of blocks is held in memory and the consumer always sees the bytes in order.
+ * The stream only moves forward and never seeks.
+ */
+public class ParallelBgzfInputStream extends InputStream {
+    final private static int BLOCK_HEADER_LENGTH = 18;
+    final private static int MAX_BLOCK_SIZE = 1 << 16;
+    final private static int BLOCKS_PER_THREAD = 4;
+
+    private static class Block {
+        final long address;
+        final byte[] data;
+        final int length;
+
+        Block(long address, byte[] data, int length) {
+            this.address = address;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private final static Block END = new Block(-1, new byte[0], 0);
+
+    private final InputStream in;
+    private final ExecutorService pool;
+    private final BlockingQueue<Future<Block>> queue;
+    private final Thread reader;
+    private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+    private volatile boolean closed = false;
+
+    private Block current = null;
+    private int offset = 0;
+    private long compressedOffset = 0;
+    private final AtomicLong inflateNanos = new AtomicLong();
+    private volatile long waitNanos = 0;
+
+    public ParallelBgzfInputStream(InputStream in, int threads) {
+        this(in, threads, 0);
+    }
+
+    /**
+     * Read from a stream positioned at the given block address of the file.
+     */
+    public ParallelBgzfInputStream(InputStream in, int threads, long address) {
+        this.in = in;
+        this.compressedOffset = address;
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "bgzf-inflater");
+            t.setDaemon(true);
+            return t;
+        });
+        this.queue = new ArrayBlockingQueue<>(threads * BLOCKS_PER_THREAD);
+        this.reader = new Thread(this::read_blocks, "bgzf-reader");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    private void read_blocks() {
+        try {
+            while (!closed) {
+                final long address = compressedOffset;
+                final byte[] block = read_block();
+                if (block == null) break;
+                queue.put(pool.submit(() -> inflate(address, block)));
+            }
+            queue.put(CompletableFuture.completedFuture(END));
+        } catch (final Exception e) {
+            if (closed) return;
+            CompletableFuture<Block> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            try {
+                queue.put(failed);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the next raw block, or null at the end of the stream
+     */
+    private byte[] read_block() throws IOException {
+        byte[] header = new byte[BLOCK_HEADER_LENGTH];
+        int n = readFully(header, 0, header.length);
+        if (n == 0) return null;
+        if (n < header.length) throw new EOFException("truncated BGZF block header at " + compressedOffset);
+        if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || (header[3] & 4) == 0
+                || header[12] != 'B' || header[13] != 'C')
+            throw new IOException("invalid BGZF block at " + compressedOffset);
+        int size = ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+        byte[] block = new byte[size];
+        System.arraycopy(header, 0, block, 0, header.length);
+        if (readFully(block, header.length, size - header.length) < size - header.length)
+            throw new EOFException("truncated BGZF block at " + compressedOffset);
+        compressedOffset += size;
+        return block;
+    }
+
+    private int readFully(byte[] b, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = in.read(b, off + total, len - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    private Block inflate(long address, byte[] block) throws IOException {
+        int xlen = (block[10] & 0xff) | (block[11] & 0xff) << 8;
+        int cdata = 12 + xlen;
+        int size = block.length;
+        int isize = (block[size - 4] & 0xff) | (block[size - 3] & 0xff) << 8
+                | (block[size - 2] & 0xff) << 16 | (block[size - 1] & 0xff) << 24;
+        if (isize > MAX_BLOCK_SIZE) throw new IOException("invalid BGZF block size at " + address);
+        long t = System.nanoTime();
+        byte[] data = new byte[isize];
+        Inflater inf = inflater.get();
+        inf.reset();
+        inf.setInput(block, cdata, size - cdata - 8);
+        try {
+            int n = 0;
+            while (n < isize) {
+                int r = inf.inflate(data, n, isize - n);
+                if (r == 0 && (inf.finished() || inf.needsInput())) break;
+                n += r;
+            }
+            if (n != isize) throw new IOException("BGZF block at " + address + " inflated to " + n + " bytes, expected " + isize);
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt BGZF block at " + address, e);
+        }
+        int crc = (block[size - 8] & 0xff) | (block[size - 7] & 0xff) << 8
+                | (block[size - 6] & 0xff) << 16 | (block[size - 5] & 0xff) << 24;
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, isize);
+        if ((int) crc32.getValue() != crc) throw new IOException("CRC mismatch in BGZF block at " + address);
+        inflateNanos.addAndGet(System.nanoTime() - t);
+        return new Block(address, data, isize);
+    }
+
+    /**
+     * Move to the next block holding data, false at the end of the stream.
+     */
+    private boolean next_block() throws IOException {
+        while (current == null || offset >= current.length) {
+            if (current == END) return false;
+            long t = System.nanoTime();
+            try {
+                current = queue.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while reading BGZF stream", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                throw new IOException(cause);
+            } finally {
+                waitNanos += System.nanoTime() - t;
+            }
+            offset = 0;
+            if (current == END) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Time the workers spent inflating and checking blocks, summed over threads.
+     */
+    public long getInflateNanos() {
+        return inflateNanos.get();
+    }
+
+    /**
+     * Time the reading thread waited for the next inflated block.
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!next_block()) return -1;
+        return current.data[offset++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!next_block()) return -1;
+        int n = Math.min(len, current.length - offset);
+        System.arraycopy(current.data, offset, b, off, n);
+        offset += n;
+        return n;
+    }
+
+    /**
+     * Move past n bytes without copying them.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || !next_block()) return 0;
+        int k = (int) Math.min(n, current.length - offset);
+        offset += k;
+        return k;
+    }
+
+    /**
+     * BGZF virtual offset of the next byte to be read: block address << 16 | offset in block.
+     */
+    public long getFilePointer() throws IOException {
+        if (!next_block()) return compressedOffset << 16;
+        return current.address << 16 | offset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        reader.interrupt();
+        pool.shutdownNow();
+        in.close();
+    }
+}
@@ -0,0 +1,78 @@
+package org.bgi.flexlab.bamqc.util;
+
+import java.util.Arrays;
+
+/**
+ * Resolves the sorted known sites of a contig as covered or not while the merged
+ * intervals of a {@link CoverageSweep} go by, so no per-base coverage is ever kept.
+ * Every site before the start of an interval is left uncovered, every site inside it is
+ * covered, and the cursor only moves forward.
+ */
+public class SiteCursor implements CoverageSweep.Sink {
+    /**
+     * Site positions in ascending order.
+     */
+    public interface Positions {
+        boolean hasNext();
+
+        int next();
+    }
+
+    private final Positions positions;
+    private long site;
+    private long known = 0;
+    private long covered = 0;
+
+    public SiteCursor(Positions positions) {
+        this.positions = positions;
+        this.site = positions.hasNext() ? positions.next() : -1;
+    }
+
+    /**
+     * Positions of a sorted array within [from, to].
+     */
+    public static Positions of(final int[] sites, final int from, final int to) {
+        int i = Arrays.binarySearch(sites, from);
+        final int first = i < 0 ? -i - 1 : i;
+        return new Positions() {
+            int next = first;
+
+            public boolean hasNext() {
+                return next < sites.length && sites[next] <= to;
+            }
+
+            public int next() {
+                return sites[next++];
+            }
+        };
+    }
+
+    private void advance() {
+        known++;
+        site = positions.hasNext() ? positions.next() : -1;
+    }
+
+    @Override
+    public void cover(long start, long end) {
+        while (site >= 0 && site < start) advance();
+        while (site >= 0 && site <= end) {
+            covered++;
+            advance();
+        }
+    }
+
+    /**
+     * Pass the sites left after the last interval, which are all uncovered.
+     */
+    public void finish() {
+        while (site >= 0) advance();
+    }
+
+    public long known() {
+        return known;
+    }
+
+    public long covered() {
+        return covered;
+    }
+}
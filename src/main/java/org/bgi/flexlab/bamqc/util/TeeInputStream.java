@@ -0,0 +1,55 @@
+package org.bgi.flexlab.bamqc.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes every byte read from the wrapped stream through to an output, unchanged.
+ * Skipped bytes are read and written too, so the copy is always complete up to the
+ * current position; the output is closed with the stream.
+ */
+public class TeeInputStream extends FilterInputStream {
+    private final OutputStream out;
+
+    public TeeInputStream(InputStream in, OutputStream out) {
+        super(in);
+        this.out = out;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) out.write(b);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) out.write(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buf = new byte[(int) Math.min(n, 1 << 16)];
+        int k = read(buf, 0, buf.length);
+        return Math.max(k, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.*;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFHeader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The sharded, merged and topped up runs must give the report of a single pass byte for byte, a sample
+ * of every window its figures.
+ */
+public class BamStatsTest {
+    private final static int CONTIG_LENGTH = 20000;
+    private final static int READ_LENGTH = 100;
+    private final static int SHARD_SIZE = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String bam;
+    private String sites;
+
+    /**
+     * chr1, chrX, chrY and chr2 covered by single reads, chrY starting with unmapped reads placed at their
+     * mates over its whole first shard and into the second, then unmapped reads without a position.
+     */
+    @Before
+    public void writeBam() throws IOException {
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        for (String name : Arrays.asList("chr1", "chrX", "chrY", "chr2"))
+            header.addSequence(new SAMSequenceRecord(name, CONTIG_LENGTH));
+        byte[] bases = new byte[READ_LENGTH];
+        Arrays.fill(bases, (byte) 'A');
+        byte[] quals = new byte[READ_LENGTH];
+        Arrays.fill(quals, (byte) 30);
+
+        File bam_file = folder.newFile("sample.bam");
+        SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true).makeBAMWriter(header, true, bam_file);
+        int n = 0;
+        for (SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+            boolean y = seq.getSequenceName().equals("chrY");
+            int step = y ? 200 : 50;
+            for (int pos = 1; pos + READ_LENGTH <= CONTIG_LENGTH; pos += step) {
+                SAMRecord read = new SAMRecord(header);
+                read.setReadName("r" + n++);
+                read.setReferenceIndex(seq.getSequenceIndex());
+                read.setAlignmentStart(pos);
+                read.setReadBases(bases);
+                read.setBaseQualities(quals);
+                if (y && pos < SHARD_SIZE + 2000) {
+                    read.setReadPairedFlag(true);
+                    read.setReadUnmappedFlag(true);
+                    read.setMateReferenceIndex(seq.getSequenceIndex());
+                    read.setMateAlignmentStart(pos);
+                } else {
+                    read.setCigarString(READ_LENGTH + "M");
+                    read.setMappingQuality(60);
+                }
+                writer.addAlignment(read);
+            }
+        }
+        for (int k = 0; k < 20; k++) {
+            SAMRecord read = new SAMRecord(header);
+            read.setReadName("u" + k);
+            read.setReadUnmappedFlag(true);
+            read.setReadBases(bases);
+            read.setBaseQualities(quals);
+            writer.addAlignment(read);
+        }
+        writer.close();
+        bam = bam_file.getAbsolutePath();
+
+        File list = folder.newFile("sites.list");
+        try (PrintWriter out = new PrintWriter(new FileWriter(list))) {
+            for (SAMSequenceRecord seq : header.getSequenceDictionary().getSequences()) {
+                File vcf = new File(folder.getRoot(), seq.getSequenceName() + ".vcf");
+                write_sites(vcf, seq, header.getSequenceDictionary());
+                out.println(seq.getSequenceName() + "\t" + vcf.getAbsolutePath());
+            }
+        }
+        sites = list.getAbsolutePath();
+    }
+
+    private static void write_sites(File vcf, SAMSequenceRecord seq, SAMSequenceDictionary dict) {
+        VariantContextWriter writer = new VariantContextWriterBuilder().setOutputFile(vcf)
+                .setReferenceDictionary(dict).unsetOption(htsjdk.variant.variantcontext.writer.Options.INDEX_ON_THE_FLY).build();
+        VCFHeader header = new VCFHeader();
+        header.setSequenceDictionary(dict);
+        writer.writeHeader(header);
+        for (int pos = 250; pos < seq.getSequenceLength(); pos += 500) {
+            writer.add(new VariantContextBuilder("test", seq.getSequenceName(), pos, pos,
+                    Arrays.asList(Allele.create("A", true), Allele.create("C", false))).make());
+        }
+        writer.close();
+    }
+
+    private BamStats stats() {
+        BamStats stats = new BamStats(bam, new ReferencePanelSite(sites), false);
+        stats.setExitOnError(false);
+        stats.setShardSize(SHARD_SIZE);
+        return stats;
+    }
+
+    private String serial() {
+        BamStats stats = stats();
+        stats.run();
+        return stats.getReport();
+    }
+
+    @Test
+    public void shardedMatchesSerial() {
+        BamStats stats = stats();
+        stats.setThreads(2);
+        stats.run();
+        assertEquals(serial(), stats.getReport());
+    }
+
+    @Test
+    public void mergedPartialMatchesSerial() throws IOException {
+        BamStats stats = stats();
+        stats.setPartial(true);
+        stats.run();
+        String partial = new File(folder.getRoot(), "sample.partial").getAbsolutePath();
+        stats.writePartial(partial);
+
+        BamStats merged = new BamStats(null, new ReferencePanelSite(sites), false);
+        merged.setExitOnError(false);
+        merged.merge(Collections.singletonList(partial));
+        assertEquals(serial(), merged.getReport());
+    }
+
+    /**
+     * Every other record of the fixture, sorted and indexed as it is.
+     */
+    private String half(String name, int parity) throws IOException {
+        File half = folder.newFile(name);
+        try (SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT)
+                .open(new File(bam));
+             SAMFileWriter writer = new SAMFileWriterFactory().setCreateIndex(true)
+                     .makeBAMWriter(reader.getFileHeader(), true, half)) {
+            int n = 0;
+            for (SAMRecord read : reader) {
+                if (n++ % 2 == parity) writer.addAlignment(read);
+            }
+        }
+        return half.getAbsolutePath();
+    }
+
+    @Test
+    public void topUpMatchesSingleRun() throws IOException {
+        String saved = new File(folder.getRoot(), "first.coverage").getAbsolutePath();
+        BamStats first = new BamStats(half("first.bam", 0), new ReferencePanelSite(sites), false);
+        first.setExitOnError(false);
+        first.setSaveCoverage(saved);
+        first.run();
+        first.writeCoverage(saved);
+
+        for (int threads : new int[]{1, 2}) {
+            BamStats second = new BamStats(half("second-" + threads + ".bam", 1), new ReferencePanelSite(sites), false);
+            second.setExitOnError(false);
+            second.setShardSize(SHARD_SIZE);
+            second.setThreads(threads);
+            second.setTopUp(saved);
+            second.run();
+            assertEquals(serial(), second.getReport());
+        }
+    }
+
+    /**
+     * Reading every window gives the figures of a full run, the panel holding a contig without reads
+     * whose sites are listed twice.
+     */
+    @Test
+    public void allSampledWindowsMatchFullRun() throws IOException {
+        File vcf = folder.newFile("chrM.vcf");
+        try (PrintWriter out = new PrintWriter(new FileWriter(vcf))) {
+            out.println("##fileformat=VCFv4.2");
+            out.println("#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO");
+            for (int pos : new int[]{100, 100, 300})
+                out.println("chrM\t" + pos + "\t.\tA\tC\t.\t.\t.");
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(sites, true))) {
+            out.println("chrM\t" + vcf.getAbsolutePath());
+        }
+        BamStats full = stats();
+        full.run();
+        Map<String, String> expected = rows(full.getReport());
+
+        BamStats sampled = stats();
+        // intervals over windows of unequal coverage never get narrower than no width at all
+        sampled.setSampler(new RegionSampler(0, 1, SHARD_SIZE / 5));
+        sampled.setThreads(2);
+        sampled.run();
+        Map<String, String> actual = rows(sampled.getReport());
+
+        assertEquals("80 of 80", actual.get("Sampled Windows").substring(0, 8));
+        assertEquals(figure(expected.get("Effective Coverage")), actual.get("Effective Coverage (exact)"));
+        assertEquals(figure(expected.get("Coverage 1X")), actual.get("Coverage 1X (exact)"));
+        assertEquals(figure(expected.get("Duplication Rate")), actual.get("Duplication Rate (exact)"));
+    }
+
+    private static Map<String, String> rows(String report) {
+        Map<String, String> rows = new HashMap<>();
+        for (String line : report.split("\n")) {
+            int i = line.indexOf(":  ");
+            rows.put(line.substring(0, i).trim(), line.substring(i + 3));
+        }
+        return rows;
+    }
+
+    /**
+     * A figure of the full report as the sampler writes it when exact.
+     */
+    private static String figure(String value) {
+        String v = value.split(" ")[0];
+        return v + " [" + v + ", " + v + "]";
+    }
+}
@@ -0,0 +1,189 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The raw decoder must fill every field the QC reads as htsjdk's records do, with any number of threads.
+ */
+public class BamStreamReaderTest {
+    // more operations than the 16 bits of n_cigar_op hold, so that the CIGAR goes to the CG tag
+    private final static int LONG_CIGAR_OPS = 70000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SAMFileHeader header;
+    private File bam;
+
+    /**
+     * Mapped, clipped, paired and unmapped reads over several BGZF blocks, their read group tagged
+     * behind other tags of every type, one read with a CIGAR too long for the record.
+     */
+    @Before
+    public void writeBam() throws IOException {
+        header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+        header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+        header.addSequence(new SAMSequenceRecord("chr2", 1000000));
+        for (String id : Arrays.asList("rg1", "rg2")) {
+            SAMReadGroupRecord rg = new SAMReadGroupRecord(id);
+            rg.setSample("sample");
+            rg.setLibrary("lib-" + id);
+            header.addReadGroup(rg);
+        }
+
+        Random random = new Random(3);
+        String[] cigars = {"100M", "5S95M", "90M10H", "40M2I58M", "30M5D70M", "50M1000N50M", "10S80M10S", "60=1X39="};
+        bam = folder.newFile("reads.bam");
+        try (SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bam)) {
+            int n = 0;
+            for (int ref = 0; ref < 2; ref++) {
+                for (int pos = 1; pos < 500000; pos += 100 + random.nextInt(100)) {
+                    SAMRecord read = new SAMRecord(header);
+                    read.setReadName("r" + n++);
+                    read.setReferenceIndex(ref);
+                    read.setAlignmentStart(pos);
+                    read.setCigarString(cigars[random.nextInt(cigars.length)]);
+                    read.setReadBases(bases(read.getCigar().getReadLength()));
+                    read.setMappingQuality(random.nextInt(61));
+                    read.setFlags(random.nextInt(0x800) & ~0x4);
+                    if (read.getReadPairedFlag()) {
+                        read.setMateReferenceIndex(random.nextInt(2));
+                        read.setMateAlignmentStart(1 + random.nextInt(500000));
+                    }
+                    read.setAttribute("NM", random.nextInt(5));
+                    read.setAttribute("XS", "tag" + n);
+                    read.setAttribute("XB", new short[]{1, 2, 3});
+                    read.setAttribute("XF", 1.5f);
+                    if (n % 3 != 0) read.setAttribute(SAMTag.RG.name(), n % 3 == 1 ? "rg1" : "rg2");
+                    writer.addAlignment(read);
+                }
+            }
+
+            SAMRecord read = new SAMRecord(header);
+            read.setReadName("long");
+            read.setReferenceIndex(1);
+            read.setAlignmentStart(600000);
+            StringBuilder cigar = new StringBuilder();
+            for (int i = 0; i < LONG_CIGAR_OPS / 2; i++) cigar.append("1M1D");
+            read.setCigarString(cigar.toString());
+            read.setReadBases(bases(LONG_CIGAR_OPS / 2));
+            read.setAttribute(SAMTag.RG.name(), "rg2");
+            writer.addAlignment(read);
+
+            for (int k = 0; k < 50; k++) {
+                read = new SAMRecord(header);
+                read.setReadName("u" + k);
+                read.setReadUnmappedFlag(true);
+                read.setReadBases(bases(100));
+                writer.addAlignment(read);
+            }
+        }
+    }
+
+    private static byte[] bases(int n) {
+        byte[] bases = new byte[n];
+        Arrays.fill(bases, (byte) 'A');
+        return bases;
+    }
+
+    private void assertSameRecords(BamStreamReader reader, boolean filePointers) throws IOException {
+        ReadGroups groups = new ReadGroups(header);
+        reader.setReadGroups(groups);
+        try (SamReader expected = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT)
+                .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS).open(bam)) {
+            BamRecord.Source source = BamRecord.of(expected.iterator(), groups);
+            BamRecord want = new BamRecord();
+            BamRecord got = new BamRecord();
+            boolean long_cigar = false;
+            int n = 0;
+            while (source.next(want)) {
+                assertTrue(reader.next(got));
+                String at = "record " + n++;
+                assertEquals(at, want.referenceIndex, got.referenceIndex);
+                assertEquals(at, want.alignmentStart, got.alignmentStart);
+                assertEquals(at, want.alignmentEnd, got.alignmentEnd);
+                assertEquals(at, want.flags, got.flags);
+                assertEquals(at, want.mappingQuality, got.mappingQuality);
+                assertEquals(at, want.readLength, got.readLength);
+                assertEquals(at, want.mateReferenceIndex, got.mateReferenceIndex);
+                assertEquals(at, want.mateAlignmentStart, got.mateAlignmentStart);
+                assertEquals(at, want.readGroup, got.readGroup);
+                assertArrayEquals(at, Arrays.copyOf(want.cigar, want.cigarLength), Arrays.copyOf(got.cigar, got.cigarLength));
+                if (filePointers) assertEquals(at, want.filePointer, got.filePointer);
+                long_cigar |= got.cigarLength == LONG_CIGAR_OPS;
+            }
+            assertFalse(reader.next(got));
+            assertTrue(long_cigar);
+        }
+    }
+
+    @Test
+    public void decodesAsHtsjdk() throws IOException {
+        for (int threads : new int[]{1, 4}) {
+            try (BamStreamReader reader = new BamStreamReader(bam.getAbsolutePath(), threads)) {
+                assertEquals(header.getSequenceDictionary(), reader.getFileHeader().getSequenceDictionary());
+                assertSameRecords(reader, true);
+            }
+        }
+    }
+
+    /**
+     * The BAM as an aligner writes it uncompressed to a pipe, told apart from BGZF by its first bytes.
+     */
+    @Test
+    public void decodesUncompressedBam() throws IOException {
+        File raw = folder.newFile("reads.ubam");
+        try (InputStream in = new BlockCompressedInputStream(bam)) {
+            Files.copy(in, raw.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        for (int threads : new int[]{1, 4}) {
+            try (BamStreamReader reader = new BamStreamReader(new FileInputStream(raw), threads)) {
+                assertEquals(-1, reader.getFilePointer());
+                assertSameRecords(reader, false);
+            }
+        }
+    }
+
+    private static String headerError(byte[] input) {
+        try (BamStreamReader ignored = new BamStreamReader(new ByteArrayInputStream(input), 1)) {
+            return null;
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    @Test
+    public void reportsInputWithoutHeader() throws IOException {
+        assertEquals("empty input", headerError(new byte[0]));
+        ByteArrayOutputStream eof_only = new ByteArrayOutputStream();
+        new BlockCompressedOutputStream(eof_only, (File) null).close();
+        assertEquals("empty input", headerError(eof_only.toByteArray()));
+        assertEquals("not a BAM file", headerError("@HD\tVN:1.6\n".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("not a BAM file", headerError(new byte[]{'B', 'A'}));
+        assertEquals("truncated BAM header", headerError(new byte[]{'B', 'A', 'M', 1, 100, 0, 0, 0}));
+    }
+}
@@ -0,0 +1,161 @@
+package org.bgi.flexlab.bamqc;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The first copy of a key is kept and the later ones are duplicates, as long as the key is within
+ * the window, whatever the keys around it in the table.
+ */
+public class DuplicateFinderTest {
+    private final static int MASK = DuplicateFinder.MIN_CAPACITY - 1;
+    private final static SAMFileHeader HEADER = new SAMFileHeader();
+
+    static {
+        HEADER.addSequence(new SAMSequenceRecord("chr1", 1000000));
+        HEADER.addSequence(new SAMSequenceRecord("chr2", 1000000));
+    }
+
+    private static BamRecord read(int ref, int start, String cigar, boolean reverse) {
+        SAMRecord read = new SAMRecord(HEADER);
+        read.setReferenceIndex(ref);
+        read.setAlignmentStart(start);
+        read.setCigarString(cigar);
+        read.setReadNegativeStrandFlag(reverse);
+        BamRecord record = new BamRecord();
+        record.set(read);
+        return record;
+    }
+
+    private static BamRecord pair(int start, String cigar, int mate_start, boolean mate_reverse) {
+        SAMRecord read = new SAMRecord(HEADER);
+        read.setReferenceIndex(0);
+        read.setAlignmentStart(start);
+        read.setCigarString(cigar);
+        read.setReadPairedFlag(true);
+        read.setMateReferenceIndex(0);
+        read.setMateAlignmentStart(mate_start);
+        read.setMateNegativeStrandFlag(mate_reverse);
+        BamRecord record = new BamRecord();
+        record.set(read);
+        return record;
+    }
+
+    /**
+     * A forward pair with its 5' end at the given position whose key has the given home slot in the
+     * smallest table, found by trying mate starts.
+     */
+    private static BamRecord pairAtSlot(int position, int slot) {
+        long key1 = (long) position << 3 | 3;
+        for (int mate = 1; ; mate++) {
+            if (DuplicateFinder.slot(key1, (long) mate << 1, MASK) == slot) return pair(position, "50M", mate, false);
+        }
+    }
+
+    /**
+     * The same key read later, its 5' clipped so that the read starts at the given position.
+     */
+    private static BamRecord copyAt(BamRecord first, int start) {
+        int clip = start - first.getAlignmentStart();
+        return pair(start, clip + "S50M", first.getMateAlignmentStart(), false);
+    }
+
+    @Test
+    public void firstCopyIsKept() {
+        DuplicateFinder finder = new DuplicateFinder();
+        assertFalse(finder.isDuplicate(read(0, 100, "50M", false)));
+        assertTrue(finder.isDuplicate(read(0, 100, "50M", false)));
+        // same unclipped 5' end
+        assertTrue(finder.isDuplicate(read(0, 105, "5S45M", false)));
+        assertTrue(finder.isDuplicate(read(0, 110, "10H40M", false)));
+
+        // a reverse read is keyed by its unclipped end, 149
+        assertFalse(finder.isDuplicate(read(0, 110, "40M", true)));
+        assertTrue(finder.isDuplicate(read(0, 110, "35M5S", true)));
+        assertTrue(finder.isDuplicate(read(0, 120, "30M", true)));
+        assertFalse(finder.isDuplicate(read(0, 121, "30M", true)));
+
+        // the mate start and strand are part of the key of a pair, not of a single read
+        assertFalse(finder.isDuplicate(read(0, 130, "50M", false)));
+        assertFalse(finder.isDuplicate(pair(130, "50M", 300, false)));
+        assertTrue(finder.isDuplicate(pair(130, "50M", 300, false)));
+        assertFalse(finder.isDuplicate(pair(130, "50M", 301, false)));
+        assertFalse(finder.isDuplicate(pair(130, "50M", 300, true)));
+        assertTrue(finder.isDuplicate(pair(130, "50M", 300, true)));
+
+        // an end with its mate unmapped is keyed as a single read
+        BamRecord mate_unmapped = pair(130, "50M", 300, false);
+        mate_unmapped.flags |= 0x8;
+        assertTrue(finder.isDuplicate(mate_unmapped));
+
+        // other contigs start afresh
+        assertFalse(finder.isDuplicate(read(1, 100, "50M", false)));
+        assertTrue(finder.isSorted());
+    }
+
+    @Test
+    public void flaggedAndSecondaryAreNoKeys() {
+        DuplicateFinder finder = new DuplicateFinder();
+        BamRecord flagged = read(0, 100, "50M", false);
+        flagged.setDuplicateReadFlag();
+        assertTrue(finder.isDuplicate(flagged));
+        BamRecord secondary = read(0, 100, "50M", false);
+        secondary.flags |= 0x100;
+        assertFalse(finder.isDuplicate(secondary));
+        assertFalse(finder.isDuplicate(secondary));
+        assertFalse(finder.isDuplicate(read(0, 100, "50M", false)));
+    }
+
+    /**
+     * One run of keys over the end of the table and around to its start, the older keys of the run
+     * expiring while the newer ones must still be found through the run closed up behind them.
+     */
+    @Test
+    public void expireAcrossWrapAround() {
+        int last = MASK;
+        // 5' ends below 1600 - WINDOW expire when the read at 1600 sweeps the table
+        BamRecord[] expired = {pairAtSlot(100, last - 1), pairAtSlot(200, last - 1), pairAtSlot(300, last)};
+        BamRecord[] kept = {pairAtSlot(700, last - 1), pairAtSlot(800, last), pairAtSlot(900, 0),
+                pairAtSlot(950, 1), pairAtSlot(960, 3)};
+
+        DuplicateFinder finder = new DuplicateFinder();
+        for (BamRecord read : expired) assertFalse(finder.isDuplicate(read));
+        for (BamRecord read : kept) assertFalse(finder.isDuplicate(read));
+        assertFalse(finder.isDuplicate(read(0, 1600, "50M", false)));
+
+        for (BamRecord read : kept) assertTrue(finder.isDuplicate(copyAt(read, 1650)));
+        for (BamRecord read : expired) assertFalse(finder.isDuplicate(copyAt(read, 1650)));
+        // the expired keys are there again as new ones
+        for (BamRecord read : expired) assertTrue(finder.isDuplicate(copyAt(read, 1660)));
+        assertTrue(finder.isSorted());
+    }
+
+    /**
+     * Enough keys at once to grow the table several times, then a sparse stretch shrinking it, the
+     * keys within the window found throughout.
+     */
+    @Test
+    public void growAndShrink() {
+        DuplicateFinder finder = new DuplicateFinder();
+        int n = 10 * DuplicateFinder.MIN_CAPACITY;
+        for (int mate = 1; mate <= n; mate++) assertFalse(finder.isDuplicate(pair(100, "50M", mate, false)));
+        for (int mate = 1; mate <= n; mate++) assertTrue(finder.isDuplicate(pair(100, "50M", mate, false)));
+
+        for (int start = 200; start < 10 * DuplicateFinder.WINDOW; start += 100) {
+            assertFalse(finder.isDuplicate(read(0, start, "50M", false)));
+            if (start > 200) assertTrue(finder.isDuplicate(read(0, start, "50M", false)));
+            for (int before = start - DuplicateFinder.WINDOW / 2; before < start; before += 100) {
+                if (before >= 200) assertTrue(finder.isDuplicate(read(0, start, (start - before) + "S50M", false)));
+            }
+        }
+        for (int mate = 1; mate <= n; mate += 97) {
+            assertFalse(finder.isDuplicate(copyAt(pair(100, "50M", mate, false), 10 * DuplicateFinder.WINDOW)));
+        }
+        assertTrue(finder.isSorted());
+    }
+}
@@ -0,0 +1,127 @@
+package org.bgi.flexlab.bamqc.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs added in any order, saved and read back or ORed together must cover the bases of a plain bitset.
+ */
+public class CoverageRunsTest {
+    private final static int LENGTH = 100000000;
+
+    /**
+     * Runs of random lengths, touching, overlapping or far apart so that the gaps take several varint bytes.
+     */
+    private static List<long[]> runs(Random random, int n) {
+        List<long[]> runs = new ArrayList<>();
+        long start = 1;
+        for (int i = 0; i < n; i++) {
+            int kind = random.nextInt(10);
+            start += kind < 3 ? 0 : kind < 6 ? random.nextInt(50) : kind < 9 ? random.nextInt(5000) : random.nextInt(3000000);
+            if (start > LENGTH) break;
+            long end = Math.min(LENGTH, start + random.nextInt(kind == 9 ? 20000 : 200));
+            runs.add(new long[]{start, end});
+            if (end == LENGTH) break;
+            start = end + 1;
+        }
+        return runs;
+    }
+
+    private static CoverageRuns cover(List<long[]> runs, BitSet bits) {
+        CoverageRuns covered = new CoverageRuns();
+        for (long[] run : runs) {
+            covered.cover(run[0], run[1]);
+            bits.set((int) run[0], (int) run[1] + 1);
+        }
+        return covered;
+    }
+
+    private static int[] positions(Random random) {
+        int[] positions = new int[20000];
+        for (int i = 0; i < positions.length; i++) positions[i] = 1 + random.nextInt(LENGTH);
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    private static long countCovered(BitSet bits, int[] positions) {
+        long n = 0;
+        for (int p : positions) if (bits.get(p)) n++;
+        return n;
+    }
+
+    private static CoverageRuns roundTrip(CoverageRuns runs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        runs.write(new DataOutputStream(bytes));
+        return CoverageRuns.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static void assertCovers(BitSet bits, CoverageRuns runs, int[] positions) {
+        assertEquals(bits.cardinality(), runs.cardinality());
+        assertEquals(countCovered(bits, positions), runs.countCovered(positions));
+    }
+
+    @Test
+    public void sortedRunsRoundTrip() throws IOException {
+        Random random = new Random(11);
+        BitSet bits = new BitSet();
+        CoverageRuns runs = cover(runs(random, 2000), bits);
+        int[] positions = positions(random);
+        assertCovers(bits, runs, positions);
+
+        CoverageRuns read = roundTrip(runs);
+        assertEquals(runs.size(), read.size());
+        assertCovers(bits, read, positions);
+    }
+
+    @Test
+    public void runsOutOfOrderAreMerged() throws IOException {
+        Random random = new Random(12);
+        List<long[]> shuffled = runs(random, 2000);
+        Collections.shuffle(shuffled, random);
+        // overlapping copies of some runs, shifted
+        for (int i = 0; i < 200; i++) {
+            long[] run = shuffled.get(i);
+            shuffled.add(new long[]{run[0] + 3, run[1] + 7});
+        }
+        BitSet bits = new BitSet();
+        CoverageRuns runs = cover(shuffled, bits);
+        int[] positions = positions(random);
+        assertCovers(bits, runs, positions);
+        assertCovers(bits, roundTrip(runs), positions);
+
+        CoverageRuns sorted = new CoverageRuns();
+        for (int from = bits.nextSetBit(0); from >= 0; from = bits.nextSetBit(bits.nextClearBit(from)))
+            sorted.cover(from, bits.nextClearBit(from) - 1);
+        assertEquals(sorted.size(), runs.size());
+    }
+
+    @Test
+    public void addAllIsTheUnion() throws IOException {
+        Random random = new Random(13);
+        BitSet a_bits = new BitSet();
+        BitSet b_bits = new BitSet();
+        CoverageRuns a = cover(runs(random, 1500), a_bits);
+        List<long[]> b_runs = runs(random, 1500);
+        Collections.shuffle(b_runs, random);
+        CoverageRuns b = cover(b_runs, b_bits);
+
+        CoverageRuns union = roundTrip(a);
+        union.addAll(roundTrip(b));
+        a_bits.or(b_bits);
+        assertCovers(a_bits, union, positions(random));
+        assertCovers(a_bits, roundTrip(union), positions(random));
+    }
+}
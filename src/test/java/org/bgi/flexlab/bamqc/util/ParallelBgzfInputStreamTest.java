@@ -0,0 +1,117 @@
+package org.bgi.flexlab.bamqc.util;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The inflated bytes and virtual offsets must be those of htsjdk's reader with any number of threads.
+ */
+public class ParallelBgzfInputStreamTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] data;
+    private File bgzf;
+
+    /**
+     * Several blocks of bytes that compress somewhat, so that the blocks differ in size.
+     */
+    @Before
+    public void writeBgzf() throws IOException {
+        Random random = new Random(7);
+        data = new byte[300000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) ('A' + random.nextInt(4));
+        bgzf = folder.newFile("data.gz");
+        try (BlockCompressedOutputStream out = new BlockCompressedOutputStream(bgzf)) {
+            out.write(data);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = in.read(buf, 0, buf.length)) >= 0) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void inflatesInOrder() throws IOException {
+        for (int threads : new int[]{1, 4}) {
+            try (ParallelBgzfInputStream in = new ParallelBgzfInputStream(new FileInputStream(bgzf), threads)) {
+                assertArrayEquals(data, readAll(in));
+                assertEquals(-1, in.read());
+            }
+        }
+    }
+
+    @Test
+    public void skipsWithinBlock() throws IOException {
+        try (ParallelBgzfInputStream in = new ParallelBgzfInputStream(new FileInputStream(bgzf), 4);
+             BlockCompressedInputStream expected = new BlockCompressedInputStream(bgzf)) {
+            long position = 0;
+            for (long n : new long[]{10, 70000, 1, 123456, 5}) {
+                long skipped = 0;
+                while (skipped < n) {
+                    long k = in.skip(n - skipped);
+                    // never past the end of the current block
+                    assertTrue(k > 0 && k <= 1 << 16);
+                    skipped += k;
+                }
+                assertEquals(n, expected.skip(n));
+                position += n;
+                assertEquals(expected.getFilePointer(), in.getFilePointer());
+                assertEquals(data[(int) position], (byte) in.read());
+                assertEquals(data[(int) position], (byte) expected.read());
+                position++;
+            }
+        }
+    }
+
+    @Test
+    public void startsAtBlockAddress() throws IOException {
+        byte[] file = Files.readAllBytes(bgzf.toPath());
+        int address = ((file[16] & 0xff) | (file[17] & 0xff) << 8) + 1;
+        FileInputStream input = new FileInputStream(bgzf);
+        input.getChannel().position(address);
+        try (ParallelBgzfInputStream in = new ParallelBgzfInputStream(input, 2, address);
+             BlockCompressedInputStream expected = new BlockCompressedInputStream(bgzf)) {
+            expected.seek((long) address << 16);
+            assertEquals((long) address << 16, in.getFilePointer());
+            assertArrayEquals(readAll(expected), readAll(in));
+        }
+    }
+
+    @Test
+    public void detectsCrcMismatch() throws IOException {
+        byte[] file = Files.readAllBytes(bgzf.toPath());
+        int size = ((file[16] & 0xff) | (file[17] & 0xff) << 8) + 1;
+        // the CRC32 of the first block is 8 bytes from its end
+        file[size - 8] ^= 1;
+        File corrupt = folder.newFile("corrupt.gz");
+        Files.write(corrupt.toPath(), file);
+        try (ParallelBgzfInputStream in = new ParallelBgzfInputStream(new FileInputStream(corrupt), 2)) {
+            readAll(in);
+            fail("a corrupt block was read");
+        } catch (IOException e) {
+            assertEquals("CRC mismatch in BGZF block at 0", e.getMessage());
+        }
+    }
+}